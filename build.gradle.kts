@@ -1,6 +1,7 @@
 plugins {
     id("java")
     id("org.jetbrains.intellij") version "1.10.1"
+    id("me.champeau.jmh") version "0.6.8"
 }
 
 group = "xyz.qumn"
@@ -16,7 +17,29 @@ intellij {
     version.set("2022.1.4")
     type.set("IC") // Target IDE Platform
 
-    plugins.set(listOf(/* Plugin Dependencies */))
+    plugins.set(listOf("IdeaVIM:2.1.0"))
+}
+
+dependencies {
+    testImplementation("junit:junit:4.13.2")
+}
+
+// Benchmarks: ./gradlew jmh, then ./gradlew jmhBaseline to accept the results as the new baseline
+// in src/jmh/baseline.json. None is checked in: timings only compare on the machine that
+// recorded them, so record the baseline there before the change to measure.
+jmh {
+    jmhVersion.set("1.36")
+    profilers.add("gc")
+    resultFormat.set("JSON")
+    resultsFile.set(layout.buildDirectory.file("results/jmh/results.json"))
+}
+
+sourceSets {
+    named("jmh") {
+        // the IDE jars are compileOnly for the plugin, the benchmarks need them at runtime too
+        compileClasspath += sourceSets["main"].compileClasspath
+        runtimeClasspath += sourceSets["main"].compileClasspath
+    }
 }
 
 tasks {
@@ -40,4 +63,10 @@ tasks {
     publishPlugin {
         token.set(System.getenv("PUBLISH_TOKEN"))
     }
+
+    register<Copy>("jmhBaseline") {
+        from(layout.buildDirectory.file("results/jmh/results.json"))
+        into(layout.projectDirectory.dir("src/jmh"))
+        rename { "baseline.json" }
+    }
 }
@@ -0,0 +1,95 @@
+package xyz.qumn.ideavimtargets;
+
+import java.util.Random;
+
+/**
+ * Generated texts the benchmarks run against. Every corpus is built from a fixed seed
+ * so runs stay comparable.
+ */
+public enum Corpus {
+    /** Pretty printed JSON nested 40 levels deep. */
+    NESTED_JSON {
+        @Override
+        String generate(Random random) {
+            StringBuilder sb = new StringBuilder();
+            nestedJson(sb, random, 0);
+            return sb.toString();
+        }
+    },
+    /** A single 1 MB line of minified JavaScript. */
+    MINIFIED_JS {
+        @Override
+        String generate(Random random) {
+            StringBuilder sb = new StringBuilder();
+            while (sb.length() < 1_000_000) {
+                sb.append("function f").append(random.nextInt(1000)).append("(a,b){return a[b]?{k:\"v\",n:[1,2,(a+b)]}:g(a,'x')};");
+            }
+            return sb.toString();
+        }
+    },
+    /** Long lines made almost only of string literals, like localisation files. */
+    STRING_HEAVY {
+        @Override
+        String generate(Random random) {
+            StringBuilder sb = new StringBuilder();
+            for (int line = 0; line < 2_000; line++) {
+                sb.append("msg").append(line).append(" = [");
+                for (int i = 0; i < 40; i++) {
+                    sb.append(random.nextBoolean() ? "\"it's \\\"here\\\"\", " : "'(a)', ");
+                }
+                sb.append("]\n");
+            }
+            return sb.toString();
+        }
+    },
+    /** An ordinary source file of 100k lines. */
+    SOURCE {
+        @Override
+        String generate(Random random) {
+            StringBuilder sb = new StringBuilder();
+            for (int line = 0; line < 100_000; line++) {
+                int depth = line % 8;
+                for (int i = 0; i < depth; i++) {
+                    sb.append("    ");
+                }
+                switch (random.nextInt(4)) {
+                    case 0:
+                        sb.append("if (check(a[").append(line).append("], \"text\")) {\n");
+                        break;
+                    case 1:
+                        sb.append("}\n");
+                        break;
+                    case 2:
+                        sb.append("call(list.get(i), 'c', new int[]{1, 2});\n");
+                        break;
+                    default:
+                        sb.append("value = map.get(key).orElse(other);\n");
+                        break;
+                }
+            }
+            return sb.toString();
+        }
+    };
+
+    abstract String generate(Random random);
+
+    String generate() {
+        return generate(new Random(42));
+    }
+
+    private static void nestedJson(StringBuilder sb, Random random, int depth) {
+        String indent = " ".repeat(depth * 2);
+        sb.append("{\n");
+        int fields = depth < 40 ? 3 : 1;
+        for (int i = 0; i < fields; i++) {
+            sb.append(indent).append("  \"key").append(i).append("\": ");
+            if (i == 0 && depth < 40) {
+                nestedJson(sb, random, depth + 1);
+            } else {
+                sb.append("[\"").append(random.nextInt()).append("\", ").append(random.nextInt(100)).append("]");
+            }
+            sb.append(i + 1 < fields ? ",\n" : "\n");
+        }
+        sb.append(indent).append("}");
+    }
+}
@@ -0,0 +1,89 @@
+package xyz.qumn.ideavimtargets;
+
+import com.intellij.openapi.actionSystem.DataContext;
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.editor.Editor;
+import com.intellij.testFramework.EdtTestUtil;
+import com.intellij.testFramework.LightProjectDescriptor;
+import com.intellij.testFramework.fixtures.CodeInsightTestFixture;
+import com.intellij.testFramework.fixtures.IdeaProjectTestFixture;
+import com.intellij.testFramework.fixtures.IdeaTestFixtureFactory;
+import com.intellij.testFramework.fixtures.TestFixtureBuilder;
+import com.intellij.testFramework.fixtures.impl.LightTempDirTestFixtureImpl;
+import com.maddyhome.idea.vim.api.ExecutionContext;
+import com.maddyhome.idea.vim.common.TextRange;
+import com.maddyhome.idea.vim.newapi.IjExecutionContext;
+import com.maddyhome.idea.vim.newapi.IjVimCaret;
+import com.maddyhome.idea.vim.newapi.IjVimEditor;
+import org.openjdk.jmh.annotations.*;
+import xyz.qumn.ideavimtargets.IdeaVimTargetsExtension.TargetsExtensionHandle.TargetsTextObjectHandler;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code ab} end to end: the text object handler IdeaVim calls, in an editor of a light
+ * test project, from the option lookup to the TextRange, on the EDT and in a read action
+ * like the command it runs in. The caret moves to a random offset of the 100k-line
+ * {@link Corpus#SOURCE} before every call, so the ancestor chains never grow, and there
+ * are more offsets than {@link TargetCache} keeps, so every call searches. Each invocation
+ * makes all its calls in one trip to the EDT, so the trip is spread over
+ * {@value #POSITIONS} calls.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GetRangeBenchmark {
+    private static final int POSITIONS = 1024;
+
+    @Param({"1", "3"})
+    public int count;
+
+    private CodeInsightTestFixture fixture;
+    private Editor editor;
+    private IjVimEditor vimEditor;
+    private IjVimCaret vimCaret;
+    private final ExecutionContext context = new IjExecutionContext(DataContext.EMPTY_CONTEXT);
+    private final TargetsTextObjectHandler handler = new TargetsTextObjectHandler(false, null, (char) 0, false, false);
+    private final int[] positions = new int[POSITIONS];
+    private TextRange range;
+
+    @Setup
+    public void setUp() throws Exception {
+        final IdeaTestFixtureFactory factory = IdeaTestFixtureFactory.getFixtureFactory();
+        final TestFixtureBuilder<IdeaProjectTestFixture> builder =
+                factory.createLightFixtureBuilder(LightProjectDescriptor.EMPTY_PROJECT_DESCRIPTOR, "GetRangeBenchmark");
+        fixture = factory.createCodeInsightFixture(builder.getFixture(), new LightTempDirTestFixtureImpl(true));
+        EdtTestUtil.runInEdtAndWait(() -> {
+            fixture.setUp();
+            fixture.configureByText("corpus.txt", Corpus.SOURCE.generate());
+        });
+        editor = fixture.getEditor();
+        vimEditor = new IjVimEditor(editor);
+        vimCaret = new IjVimCaret(editor.getCaretModel().getPrimaryCaret());
+        Random random = new Random(17);
+        for (int i = 0; i < POSITIONS; i++) {
+            positions[i] = random.nextInt(editor.getDocument().getTextLength());
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        EdtTestUtil.runInEdtAndWait(() -> fixture.tearDown());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(POSITIONS)
+    public TextRange getRange() {
+        EdtTestUtil.runInEdtAndWait(() -> {
+            for (int position : positions) {
+                editor.getCaretModel().getPrimaryCaret().moveToOffset(position);
+                range = ReadAction.compute(() -> handler.getRange(vimEditor, vimCaret, context, count, 0, null));
+            }
+        });
+        return range;
+    }
+}
@@ -0,0 +1,127 @@
+package xyz.qumn.ideavimtargets;
+
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.impl.DocumentImpl;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The key sequences people type, resolved the way the text object handler resolves
+ * them, with a fresh {@link Budget} per keystroke and the ranges it would return, against
+ * the 100k-line {@link Corpus#SOURCE}. Carets are placed at random and nothing is cached
+ * between keystrokes, so every invocation is a cold miss.
+ * <p>
+ * At setup every scenario is checked against the unbatched finder, which resolves each
+ * caret on its own without a budget. The sample time mode reports the percentiles of each
+ * scenario; the latency budgets of the keystrokes, typed through IdeaVim with everything
+ * above the handler, are asserted by {@code TextObjectScenarioTest}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ScenarioBenchmark {
+    private static final int ROUNDS = 64;
+
+    public enum Scenario {
+        /** {@code dab} */
+        DAB(false, 1, 1),
+        /** {@code crb} */
+        CRB(true, 1, 1),
+        /** {@code v3ab} */
+        V3AB(false, 3, 1),
+        /** {@code ab} with 100 carets */
+        MULTI_CARET_AB(false, 1, 100);
+
+        final boolean isInner;
+        final int count;
+        final int carets;
+
+        Scenario(boolean isInner, int count, int carets) {
+            this.isInner = isInner;
+            this.count = count;
+            this.carets = carets;
+        }
+    }
+
+    @Param
+    public Scenario scenario;
+
+    private Document document;
+    // the caret offsets of every keystroke
+    private final int[][] rounds = new int[ROUNDS][];
+    private int next;
+    private Bounds[] targets;
+
+    @Setup
+    public void setUp() {
+        document = new DocumentImpl(Corpus.SOURCE.generate());
+        Random random = new Random(13);
+        targets = new Bounds[scenario.carets];
+        for (int i = 0; i < targets.length; i++) {
+            targets[i] = new Bounds();
+        }
+        for (int round = 0; round < ROUNDS; round++) {
+            rounds[round] = new int[scenario.carets];
+            for (int i = 0; i < scenario.carets; i++) {
+                rounds[round][i] = random.nextInt(document.getTextLength());
+            }
+            check(rounds[round]);
+        }
+    }
+
+    private void check(int[] positions) {
+        resolve(positions, 0);
+        for (int i = 0; i < positions.length; i++) {
+            Budget.current().start(0);
+            Bounds expected = TargetFinder.getInstance().findBoundsAt(document, null, PairsFinder.DEFAULT_PAIRS, QuoteFinder.DEFAULT_QUOTES,
+                    positions[i], scenario.count, TargetsOptions.DEFAULT_SEARCH_LIMIT);
+            long expectedRange = expected == null ? -1 : range(expected);
+            long actualRange = targets[i].isFound() ? range(targets[i]) : -1;
+            if (expectedRange != actualRange) {
+                throw new IllegalStateException(scenario + " at " + positions[i] + ": expected range " + expectedRange + ", got " + actualRange);
+            }
+        }
+    }
+
+    @Benchmark
+    public long keystroke() {
+        next = (next + 1) & (ROUNDS - 1);
+        return resolve(rounds[next], TargetsOptions.DEFAULT_BUDGET_MS);
+    }
+
+    // resolves the targets of every caret into targets, returns the sum of their ranges
+    private long resolve(int[] positions, int budgetMillis) {
+        Budget.current().start(budgetMillis);
+        if (positions.length == 1) {
+            Bounds nearest = TargetFinder.getInstance().findBoundsAt(document, null, PairsFinder.DEFAULT_PAIRS, QuoteFinder.DEFAULT_QUOTES,
+                    positions[0], scenario.count, TargetsOptions.DEFAULT_SEARCH_LIMIT);
+            if (nearest == null) {
+                targets[0].clear();
+            } else {
+                targets[0].set(nearest);
+            }
+        } else {
+            TargetFinder.findBoundsAll(document, null, PairsFinder.DEFAULT_PAIRS, QuoteFinder.DEFAULT_QUOTES, positions, scenario.count,
+                    TargetsOptions.DEFAULT_SEARCH_LIMIT, targets);
+        }
+        long sum = 0;
+        for (Bounds target : targets) {
+            if (target.isFound()) {
+                sum += range(target);
+            }
+        }
+        return sum;
+    }
+
+    // start and end of the TextRange the handler would return, packed in one long
+    private long range(Bounds bounds) {
+        long start = scenario.isInner ? bounds.start + bounds.openLength : bounds.start;
+        long end = scenario.isInner ? bounds.end : bounds.end + bounds.closeLength;
+        return start << 32 | end;
+    }
+}
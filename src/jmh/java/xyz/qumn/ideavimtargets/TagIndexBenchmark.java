@@ -0,0 +1,99 @@
+package xyz.qumn.ideavimtargets;
+
+import com.intellij.openapi.editor.impl.DocumentImpl;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The tag objects while the markup is edited. Every invocation types an open tag at a
+ * random offset and looks up the pair around a caret, then deletes the tag and looks up
+ * again, so each lookup pays for tokenizing the edit and matching all the pairs again,
+ * the way typing inside a large file does. {@link #unmatchedCloses} adds a close tag of a
+ * name that is open nowhere, which the matching passes over.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TagIndexBenchmark {
+    private static final int POSITIONS = 1024;
+
+    @Param({"10000", "100000"})
+    public int elements;
+
+    private DocumentImpl document;
+    private TagIndex index;
+    private final int[] positions = new int[POSITIONS];
+    private int next;
+    private final Bounds bounds = new Bounds();
+
+    @Setup
+    public void setUp() {
+        document = new DocumentImpl(markup(elements, new Random(3)), true);
+        final String text = document.getText();
+        final Random random = new Random(7);
+        for (int i = 0; i < POSITIONS; i++) {
+            // between two tags, so the edit drops none of them
+            positions[i] = text.indexOf('\n', random.nextInt(text.length() - 1)) + 1;
+            if (positions[i] == 0) {
+                positions[i] = text.length();
+            }
+        }
+        index = TagIndex.forDocument(document);
+        Budget.current().start(0);
+        index.findEnclosing(positions[0], 1, bounds);
+    }
+
+    private int nextPosition() {
+        next = (next + 1) & (POSITIONS - 1);
+        return positions[next];
+    }
+
+    @Benchmark
+    public boolean openTag() {
+        return editAndFind("<b>");
+    }
+
+    @Benchmark
+    public boolean unmatchedCloses() {
+        return editAndFind("</u>");
+    }
+
+    private boolean editAndFind(String tag) {
+        final int position = nextPosition();
+        document.insertString(position, tag);
+        boolean found = index.findEnclosing(position, 1, bounds);
+        document.deleteString(position, position + tag.length());
+        found &= index.findEnclosing(position, 1, bounds);
+        return found;
+    }
+
+    // a page of nested sections, lists and paragraphs, one element per line
+    private static String markup(int elements, Random random) {
+        final StringBuilder sb = new StringBuilder("<html>\n<body>\n");
+        final String[] names = {"div", "section", "ul", "li", "p", "span"};
+        int depth = 0;
+        final String[] open = new String[16];
+        for (int i = 0; i < elements; i++) {
+            if (depth > 0 && (depth == open.length || random.nextInt(3) == 0)) {
+                sb.append("</").append(open[--depth]).append(">\n");
+            }
+            final String name = names[random.nextInt(names.length)];
+            if (random.nextBoolean()) {
+                sb.append('<').append(name).append(" class=\"c").append(i % 13).append("\">text ").append(i)
+                        .append("</").append(name).append(">\n");
+            } else {
+                sb.append('<').append(name).append(">\n");
+                open[depth++] = name;
+            }
+        }
+        while (depth > 0) {
+            sb.append("</").append(open[--depth]).append(">\n");
+        }
+        return sb.append("</body>\n</html>\n").toString();
+    }
+}
@@ -0,0 +1,166 @@
+package xyz.qumn.ideavimtargets;
+
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.impl.DocumentImpl;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Text-object engines against the generated corpora. DocumentImpl works without a running
+ * IDE, so the whole path below the IdeaVim handler is measured headless, see
+ * {@link GetRangeBenchmark} for the handler itself. {@link #findNextPairs} and
+ * {@link #findQuoteBoundsAt} time the finders alone on lines swept beforehand, the way
+ * {@link TargetFinder} feeds them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TextObjectBenchmark {
+    private static final int POSITIONS = 1024;
+
+    @Param({"NESTED_JSON", "MINIFIED_JS", "STRING_HEAVY", "SOURCE"})
+    public Corpus corpus;
+
+    @Param({"1", "3"})
+    public int count;
+
+    private Document document;
+    private final int[] positions = new int[POSITIONS];
+    private int next;
+
+    private final PairsFinder pairsFinder = new PairsFinder();
+    private final Bounds bounds = new Bounds();
+
+    @Setup
+    public void setUp() {
+        document = new DocumentImpl(corpus.generate());
+        Random random = new Random(7);
+        for (int i = 0; i < POSITIONS; i++) {
+            positions[i] = random.nextInt(document.getTextLength());
+        }
+        // the index is built once per document, measure the lookups and not the first build
+        BracketIndex.forDocument(document, PairsFinder.DEFAULT_PAIRS);
+    }
+
+    private int nextPosition() {
+        next = (next + 1) & (POSITIONS - 1);
+        return positions[next];
+    }
+
+    @Benchmark
+    public boolean findSurroundPairs() {
+        int position = nextPosition();
+        int line = document.getLineNumber(position);
+        pairsFinder.reset(document, PairsFinder.DEFAULT_PAIRS, null, document.getLineStartOffset(line), TargetsOptions.DEFAULT_SEARCH_LIMIT);
+        return pairsFinder.findSurroundPairs(position, count, bounds);
+    }
+
+    @Benchmark
+    public Bounds findBoundsAt() {
+        return TargetFinder.getInstance().findBoundsAt(document, null, PairsFinder.DEFAULT_PAIRS, QuoteFinder.DEFAULT_QUOTES, nextPosition(), count, TargetsOptions.DEFAULT_SEARCH_LIMIT);
+    }
+
+    /**
+     * Caret lines swept into their own finders at setup, so a benchmark pays for the lookup
+     * of the finder and not for the sweep. A line longer than the first window of
+     * {@link TargetFinder} is swept around the caret only, like that window.
+     */
+    @State(Scope.Thread)
+    public static class SweptLines {
+        private static final int LINES = 64;
+        private static final int RADIUS = 1024;
+
+        final PairsFinder[] pairsFinders = new PairsFinder[LINES];
+        final QuoteFinder[] quoteFinders = new QuoteFinder[LINES];
+        final int[] positions = new int[LINES];
+        int next;
+
+        @Setup
+        public void setUp(TextObjectBenchmark benchmark) {
+            final Document document = benchmark.document;
+            final CharSequence text = document.getImmutableCharSequence();
+            final CharClassifier classifier = PairsFinder.DEFAULT_PAIRS.classifierWith(QuoteFinder.DEFAULT_QUOTES);
+            for (int i = 0; i < LINES; i++) {
+                final int position = benchmark.positions[i];
+                final int line = document.getLineNumber(position);
+                final int lineStart = document.getLineStartOffset(line);
+                final int lineEnd = document.getLineEndOffset(line);
+                final int from = Math.max(lineStart, position - RADIUS);
+                final int to = Math.min(lineEnd, position + RADIUS + 1);
+                final char[] chars = new char[to - from];
+                for (int j = 0; j < chars.length; j++) {
+                    chars[j] = text.charAt(from + j);
+                }
+                positions[i] = position;
+                pairsFinders[i] = new PairsFinder();
+                pairsFinders[i].reset(document, PairsFinder.DEFAULT_PAIRS, null, lineStart, TargetsOptions.DEFAULT_SEARCH_LIMIT);
+                quoteFinders[i] = new QuoteFinder();
+                quoteFinders[i].reset(document);
+                boolean isPreEsc = false;
+                for (int j = 0; j < chars.length; j++) {
+                    final byte kind = classifier.kindOf(chars[j]);
+                    if (kind == CharClassifier.QUOTE && !isPreEsc) {
+                        quoteFinders[i].addQuote(from + j, chars[j]);
+                        continue;
+                    }
+                    if (kind == CharClassifier.TOKEN) {
+                        final int token = classifier.match(chars, j, chars.length);
+                        if (token != -1) {
+                            pairsFinders[i].addBracket(from + j, token);
+                            j += PairsFinder.DEFAULT_PAIRS.lengthOf(token) - 1;
+                        }
+                    }
+                    isPreEsc = chars[j] == '\\';
+                }
+            }
+        }
+
+        int nextLine() {
+            next = (next + 1) & (LINES - 1);
+            return next;
+        }
+    }
+
+    @Benchmark
+    public boolean findNextPairs(SweptLines lines) {
+        int line = lines.nextLine();
+        return lines.pairsFinders[line].findNextPairs(lines.positions[line], count, lines.quoteFinders[line], bounds);
+    }
+
+    @Benchmark
+    public boolean findQuoteBoundsAt(SweptLines lines) {
+        int line = lines.nextLine();
+        return lines.quoteFinders[line].findBoundsAt(lines.positions[line], count, bounds);
+    }
+
+    @State(Scope.Thread)
+    public static class Carets {
+        @Param({"1", "200", "2000"})
+        public int carets;
+
+        int[] positions;
+        Bounds[] targets;
+
+        @Setup
+        public void setUp(TextObjectBenchmark benchmark) {
+            Random random = new Random(11);
+            positions = new int[carets];
+            targets = new Bounds[carets];
+            for (int i = 0; i < carets; i++) {
+                positions[i] = random.nextInt(benchmark.document.getTextLength());
+                targets[i] = new Bounds();
+            }
+        }
+    }
+
+    @Benchmark
+    public Bounds[] findBoundsAll(Carets carets) {
+        TargetFinder.findBoundsAll(document, null, PairsFinder.DEFAULT_PAIRS, QuoteFinder.DEFAULT_QUOTES, carets.positions, count, TargetsOptions.DEFAULT_SEARCH_LIMIT, carets.targets);
+        return carets.targets;
+    }
+}
@@ -0,0 +1,90 @@
+package xyz.qumn.ideavimtargets;
+
+import com.intellij.openapi.editor.Caret;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.util.Key;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * The pairs around the last pair a caret selected, innermost first. It is recorded in one
+ * outward walk when a pair is selected, so repeating the text object in visual mode grows
+ * the selection to the next ancestor without searching from the caret again.
+ * <p>
+ * A chain only applies while the document is unchanged and the caret still selects
+ * exactly the range it produced last.
+ */
+class AncestorChain {
+    private static final Key<AncestorChain> KEY = Key.create("xyz.qumn.ideavimtargets.AncestorChain");
+
+    private Document document;
+    private long stamp;
+    private PairsFinder.Pairs pairs;
+    private boolean inner;
+    // open and close offsets and lengths, four slots per pair
+    private final IntStack chain = new IntStack();
+    private int level;
+
+    /**
+     * Serves the pair count levels above the one the caret selects, if its selection
+     * came from a chain that is still valid.
+     *
+     * @return false if there is no such chain; otherwise out holds the pair, or is cleared
+     * when the chain has fewer levels than asked for.
+     */
+    static boolean grow(@NotNull Caret caret, @NotNull Document document, @NotNull PairsFinder.Pairs pairs,
+                        boolean inner, int count, @NotNull Bounds out) {
+        final AncestorChain ancestors = caret.getUserData(KEY);
+        if (ancestors == null || !ancestors.selects(caret, document, pairs, inner)) {
+            return false;
+        }
+        final int next = ancestors.level + count;
+        if (next * 4 >= ancestors.chain.size()) {
+            out.clear();
+            return true;
+        }
+        ancestors.level = next;
+        final IntStack chain = ancestors.chain;
+        out.set(chain.get(next * 4), chain.get(next * 4 + 1), chain.get(next * 4 + 2), chain.get(next * 4 + 3));
+        return true;
+    }
+
+    /**
+     * Records the chain of the target the caret is about to select. Quote targets have
+     * no chain and drop the one the caret had.
+     */
+    static void remember(@NotNull Caret caret, @NotNull Document document, @NotNull PairsFinder.Pairs pairs,
+                         boolean inner, @NotNull Bounds target) {
+        AncestorChain ancestors = caret.getUserData(KEY);
+        if (ancestors == null) {
+            ancestors = new AncestorChain();
+        }
+        ancestors.chain.clear();
+        BracketIndex.forDocument(document, pairs).enclosingChain(target.start, ancestors.chain);
+        if (ancestors.chain.isEmpty() || ancestors.chain.get(1) != target.end) {
+            caret.putUserData(KEY, null);
+            return;
+        }
+        ancestors.document = document;
+        ancestors.stamp = document.getModificationStamp();
+        ancestors.pairs = pairs;
+        ancestors.inner = inner;
+        ancestors.level = 0;
+        // storing it again would copy the user data map of the caret
+        if (caret.getUserData(KEY) != ancestors) {
+            caret.putUserData(KEY, ancestors);
+        }
+    }
+
+    private boolean selects(@NotNull Caret caret, @NotNull Document document, @NotNull PairsFinder.Pairs pairs,
+                            boolean inner) {
+        if (this.document != document || stamp != document.getModificationStamp()
+                || !this.pairs.equals(pairs) || this.inner != inner || !caret.hasSelection()) {
+            return false;
+        }
+        final int open = chain.get(level * 4);
+        final int close = chain.get(level * 4 + 1);
+        final int start = inner ? open + chain.get(level * 4 + 2) : open;
+        final int end = inner ? close : close + chain.get(level * 4 + 3);
+        return caret.getSelectionStart() == start && caret.getSelectionEnd() == end;
+    }
+}
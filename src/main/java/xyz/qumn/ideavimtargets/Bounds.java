@@ -0,0 +1,38 @@
+package xyz.qumn.ideavimtargets;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Mutable start/end offsets filled in by the finders, the offsets of the open and the
+ * close delimiter along with their lengths. Instances are owned by the caller and reused,
+ * so a lookup does not allocate its result.
+ */
+class Bounds {
+    int start = Integer.MIN_VALUE;
+    int end = Integer.MAX_VALUE;
+    int openLength = 1;
+    int closeLength = 1;
+
+    void set(int start, int end) {
+        set(start, end, 1, 1);
+    }
+
+    void set(int start, int end, int openLength, int closeLength) {
+        this.start = start;
+        this.end = end;
+        this.openLength = openLength;
+        this.closeLength = closeLength;
+    }
+
+    void set(@NotNull Bounds other) {
+        set(other.start, other.end, other.openLength, other.closeLength);
+    }
+
+    void clear() {
+        set(Integer.MIN_VALUE, Integer.MAX_VALUE);
+    }
+
+    boolean isFound() {
+        return start != Integer.MIN_VALUE;
+    }
+}
@@ -0,0 +1,541 @@
+package xyz.qumn.ideavimtargets;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.event.DocumentEvent;
+import com.intellij.openapi.editor.event.DocumentListener;
+import com.intellij.openapi.util.Disposer;
+import com.intellij.openapi.util.Key;
+import com.intellij.util.text.CharArrayUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+
+/**
+ * Offsets of every bracket in a document, kept in sync through document events.
+ * Brackets are matched leftmost-longest and never span lines, so the brackets of a line
+ * do not depend on the text around it.
+ * <p>
+ * The brackets are the nodes of a randomized search tree ordered by offset. A node holds
+ * its offset relative to the shifts pending on the subtrees above it, so an edit moves
+ * every bracket after it by adding to the shift of one subtree; it splits out the brackets
+ * of the changed text and joins in the new ones, in O(log n) for a keystroke. Every
+ * subtree also holds the sum of its depth steps, +1 for an open bracket and -1 for a
+ * close bracket, and the lowest depth before and after each of its brackets, so the depth
+ * at a bracket, its partner and the pair around it are found by descending along those
+ * sums in O(log n), and nothing is recomputed for the whole document after an edit.
+ * Partners are matched by depth only, mismatched kinds are reported by the caller.
+ * <p>
+ * The depth counts every bracket of the document, those in strings and comments too, so
+ * one left unbalanced there moves the depth of all the text after it. The default pairs
+ * leave out {@code <>} for that reason, which {@code a < b} and {@code x -> f(x)} leave
+ * unbalanced everywhere; g:targets_syntax_aware skips the brackets of literals instead.
+ * <p>
+ * Queries take no lock, so the workers of a batch read the index side by side: it is
+ * only written by document events, which come under a write action when no query can
+ * run. An index is built for one set of pairs and replaced as a whole when another set is
+ * asked for, so a query still reading the old one is not disturbed.
+ */
+class BracketIndex implements DocumentListener {
+    private static final Key<BracketIndex> KEY = Key.create("xyz.qumn.ideavimtargets.BracketIndex");
+    // the text is indexed in chunks of this many chars copied out in one bulk read
+    private static final int CHUNK = 8192;
+    // the lowest depth in the empty tree, far enough from overflowing when added to
+    private static final int NONE = Integer.MAX_VALUE / 2;
+
+    @NotNull
+    private final Document document;
+    @NotNull
+    private final PairsFinder.Pairs pairs;
+    // removes this index from its document when it is replaced
+    private Disposable lifetime;
+
+    // node 0 is the empty tree, the nodes of removed brackets are chained through left
+    private int root;
+    private int allocated = 1;
+    private int free;
+    private int[] left = new int[16];
+    private int[] right = new int[16];
+    // the offset of a bracket is its own plus the shifts of the nodes above it and its own
+    private int[] offsets = new int[16];
+    private int[] shifts = new int[16];
+    // the token of the bracket, see PairsFinder.Pairs
+    private int[] tokens = new int[16];
+    // number of brackets in the subtree, sum of their depth steps and lowest depth before
+    // and after one of them, relative to the depth before the subtree
+    private int[] counts = new int[16];
+    private int[] sums = new int[16];
+    private int[] minBefore = new int[16];
+    private int[] minAfter = new int[16];
+    private int random = 0x2545F491;
+    // the trees split by the last split call
+    private int splitLeft;
+    private int splitRight;
+    // offset and token of every bracket found by the last tokenize call
+    private final IntStack found = new IntStack();
+    private char[] chunk = new char[CHUNK];
+
+    private BracketIndex(@NotNull Document document, @NotNull PairsFinder.Pairs pairs) {
+        this.document = document;
+        this.pairs = pairs;
+        minBefore[0] = NONE;
+        minAfter[0] = NONE;
+        final CharSequence text = document.getImmutableCharSequence();
+        tokenize(text, 0, text.length());
+        root = build(0, found.size() / 2);
+    }
+
+    /**
+     * @return the index of the pairs in document, built first if there is none yet or the
+     * one there is for other pairs.
+     */
+    @NotNull
+    static BracketIndex forDocument(@NotNull Document document, @NotNull PairsFinder.Pairs pairs) {
+        BracketIndex index = document.getUserData(KEY);
+        if (index != null && index.pairs.equals(pairs)) {
+            return index;
+        }
+        synchronized (BracketIndex.class) {
+            index = document.getUserData(KEY);
+            if (index == null || !index.pairs.equals(pairs)) {
+                if (index != null) {
+                    Disposer.dispose(index.lifetime);
+                }
+                index = new BracketIndex(document, pairs);
+                index.lifetime = DocumentLifetime.attach(document, KEY, index);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Finds the count-th pair enclosing position. A bracket under the caret counts as
+     * enclosing it, the same way the old outward scan treated it.
+     *
+     * @return false if there is no such pair or its brackets are of different kinds,
+     * otherwise out holds the pair.
+     */
+    boolean findEnclosing(int position, int count, @NotNull Bounds out) {
+        int end = lowerBound(position);
+        if (end < counts[root] && offsetAt(end) == position && PairsFinder.Pairs.isOpenBracket(tokenAt(end))) {
+            end++;
+        } else if (end > 0 && !PairsFinder.Pairs.isOpenBracket(tokenAt(end - 1))
+                && offsetAt(end - 1) + pairs.lengthOf(tokenAt(end - 1)) > position) {
+            // the caret is inside a close bracket longer than one char
+            end--;
+        }
+        final int open = lastAtMost(root, 0, 0, end, depthBefore(end) - count);
+        if (open == -1) {
+            return false;
+        }
+        final int close = closeOf(open);
+        if (close == -1 || !PairsFinder.Pairs.isMatching(tokenAt(open), tokenAt(close))) {
+            return false;
+        }
+        out.set(offsetAt(open), offsetAt(close), pairs.lengthOf(tokenAt(open)), pairs.lengthOf(tokenAt(close)));
+        return true;
+    }
+
+    /**
+     * Walks outward from the pair opened at offset open and appends it and every pair
+     * around it to chain, innermost first, as open and close offsets and lengths. The
+     * walk stops at the first unmatched pair or pair of mismatched kinds.
+     */
+    void enclosingChain(int open, @NotNull IntStack chain) {
+        int i = lowerBound(open);
+        if (i == counts[root] || offsetAt(i) != open || !PairsFinder.Pairs.isOpenBracket(tokenAt(i))) {
+            return;
+        }
+        while (i != -1) {
+            final int close = closeOf(i);
+            if (close == -1 || !PairsFinder.Pairs.isMatching(tokenAt(i), tokenAt(close))) {
+                return;
+            }
+            pushPair(i, close, chain);
+            i = openOf(i);
+        }
+    }
+
+    /**
+     * Appends the first count pairs opened after position to out, nearest first, as open
+     * and close offsets and lengths. Unmatched pairs and pairs of mismatched kinds are
+     * skipped.
+     */
+    void pairsAfter(int position, int count, @NotNull IntStack out) {
+        final int size = counts[root];
+        for (int i = lowerBound(position + 1); i < size && count > 0; i++) {
+            if (PairsFinder.Pairs.isOpenBracket(tokenAt(i))) {
+                final int close = closeOf(i);
+                if (close != -1 && PairsFinder.Pairs.isMatching(tokenAt(i), tokenAt(close))) {
+                    pushPair(i, close, out);
+                    count--;
+                }
+            }
+        }
+    }
+
+    /**
+     * Same as {@link #pairsAfter} for the pairs closed before position, the one closed
+     * nearest to it first.
+     */
+    void pairsBefore(int position, int count, @NotNull IntStack out) {
+        for (int i = lowerBound(position) - 1; i >= 0 && count > 0; i--) {
+            if (!PairsFinder.Pairs.isOpenBracket(tokenAt(i))) {
+                final int open = openOf(i);
+                if (open != -1 && PairsFinder.Pairs.isMatching(tokenAt(open), tokenAt(i))) {
+                    pushPair(open, i, out);
+                    count--;
+                }
+            }
+        }
+    }
+
+    /**
+     * Appends the outermost pairs that lie entirely between offsets from and to to out, in
+     * order, as open offsets and the offsets just past their close brackets. Pairs of
+     * mismatched kinds are appended too, they still nest.
+     */
+    void outermostPairs(int from, int to, @NotNull IntStack out) {
+        final int size = counts[root];
+        for (int i = lowerBound(from); i < size; i++) {
+            final int offset = offsetAt(i);
+            if (offset >= to) {
+                break;
+            }
+            if (PairsFinder.Pairs.isOpenBracket(tokenAt(i))) {
+                final int close = closeOf(i);
+                if (close != -1 && offsetAt(close) < to) {
+                    out.push(offset);
+                    out.push(offsetAt(close) + pairs.lengthOf(tokenAt(close)));
+                    i = close;
+                }
+            }
+        }
+    }
+
+    private void pushPair(int open, int close, @NotNull IntStack out) {
+        out.push(offsetAt(open));
+        out.push(offsetAt(close));
+        out.push(pairs.lengthOf(tokenAt(open)));
+        out.push(pairs.lengthOf(tokenAt(close)));
+    }
+
+    // the close bracket of the i-th bracket, an open one, or -1
+    private int closeOf(int i) {
+        return firstAtMost(root, 0, 0, i + 1, depthBefore(i));
+    }
+
+    // the open bracket around the i-th bracket, which is its partner for a close one, or -1
+    private int openOf(int i) {
+        return lastAtMost(root, 0, 0, i, depthBefore(i) - 1);
+    }
+
+    /**
+     * @return the last bracket before end in the subtree of node with a depth of at most
+     * max before it, or -1. The brackets of the subtree are counted from first and the
+     * depth before it is depth.
+     */
+    private int lastAtMost(int node, int first, int depth, int end, int max) {
+        if (node == 0 || first >= end || depth + minBefore[node] > max) {
+            return -1;
+        }
+        final int l = left[node];
+        final int i = first + counts[l];
+        final int before = depth + sums[l];
+        final int found = lastAtMost(right[node], i + 1, before + step(tokens[node]), end, max);
+        if (found != -1) {
+            return found;
+        }
+        if (i < end && before <= max) {
+            return i;
+        }
+        return lastAtMost(l, first, depth, end, max);
+    }
+
+    /**
+     * @return the first bracket from start on in the subtree of node with a depth of at
+     * most max after it, or -1, see {@link #lastAtMost}.
+     */
+    private int firstAtMost(int node, int first, int depth, int start, int max) {
+        if (node == 0 || first + counts[node] <= start || depth + minAfter[node] > max) {
+            return -1;
+        }
+        final int l = left[node];
+        final int i = first + counts[l];
+        final int found = firstAtMost(l, first, depth, start, max);
+        if (found != -1) {
+            return found;
+        }
+        final int after = depth + sums[l] + step(tokens[node]);
+        if (i >= start && after <= max) {
+            return i;
+        }
+        return firstAtMost(right[node], i + 1, after, start, max);
+    }
+
+    // the depth before the i-th bracket, the depth at the end of the document past the last one
+    private int depthBefore(int i) {
+        int node = root;
+        int depth = 0;
+        while (node != 0) {
+            final int l = left[node];
+            if (i <= counts[l]) {
+                node = l;
+            } else {
+                depth += sums[l] + step(tokens[node]);
+                i -= counts[l] + 1;
+                node = right[node];
+            }
+        }
+        return depth;
+    }
+
+    private int offsetAt(int i) {
+        int node = root;
+        int shift = 0;
+        while (true) {
+            shift += shifts[node];
+            final int l = left[node];
+            if (i < counts[l]) {
+                node = l;
+            } else if (i == counts[l]) {
+                return offsets[node] + shift;
+            } else {
+                i -= counts[l] + 1;
+                node = right[node];
+            }
+        }
+    }
+
+    private int tokenAt(int i) {
+        int node = root;
+        while (true) {
+            final int l = left[node];
+            if (i < counts[l]) {
+                node = l;
+            } else if (i == counts[l]) {
+                return tokens[node];
+            } else {
+                i -= counts[l] + 1;
+                node = right[node];
+            }
+        }
+    }
+
+    // first bracket whose offset is >= offset
+    private int lowerBound(int offset) {
+        int node = root;
+        int shift = 0;
+        int first = 0;
+        int found = counts[root];
+        while (node != 0) {
+            shift += shifts[node];
+            final int l = left[node];
+            if (offsets[node] + shift >= offset) {
+                found = first + counts[l];
+                node = l;
+            } else {
+                first += counts[l] + 1;
+                node = right[node];
+            }
+        }
+        return found;
+    }
+
+    private static int step(int token) {
+        return PairsFinder.Pairs.isOpenBracket(token) ? 1 : -1;
+    }
+
+    @Override
+    public void documentChanged(@NotNull DocumentEvent event) {
+        final int start = event.getOffset();
+        final int delta = event.getNewLength() - event.getOldLength();
+        // the brackets from offset from up to offset to before the change are dropped
+        final int from;
+        final int to;
+        found.clear();
+        if (pairs.maxLength() == 1) {
+            // single-char brackets can only appear or vanish inside the changed text
+            from = start;
+            to = start + event.getOldLength();
+            CharSequence fragment = event.getNewFragment();
+            for (int i = 0; i < fragment.length(); i++) {
+                int token = pairs.classifier().tokenOf(fragment.charAt(i));
+                if (token != -1) {
+                    found.push(start + i);
+                    found.push(token);
+                }
+            }
+        } else {
+            // a longer bracket may start before the change or end after it, tokenize the touched lines again
+            int lineStart = document.getLineStartOffset(document.getLineNumber(start));
+            int lineEnd = document.getLineEndOffset(document.getLineNumber(start + event.getNewLength()));
+            from = lineStart;
+            to = lineEnd - delta;
+            tokenize(document.getImmutableCharSequence(), lineStart, lineEnd);
+        }
+
+        split(root, from);
+        final int before = splitLeft;
+        split(splitRight, to);
+        final int after = splitRight;
+        release(splitLeft);
+        if (after != 0) {
+            shifts[after] += delta;
+        }
+        root = merge(merge(before, build(0, found.size() / 2)), after);
+    }
+
+    // splits the tree of node into the brackets before offset and the rest, left in splitLeft and splitRight
+    private void split(int node, int offset) {
+        if (node == 0) {
+            splitLeft = 0;
+            splitRight = 0;
+            return;
+        }
+        applyShift(node);
+        if (offsets[node] < offset) {
+            split(right[node], offset);
+            right[node] = splitLeft;
+            update(node);
+            splitLeft = node;
+        } else {
+            split(left[node], offset);
+            left[node] = splitRight;
+            update(node);
+            splitRight = node;
+        }
+    }
+
+    // joins two trees, every bracket of a before those of b; the root is drawn weighted by size
+    private int merge(int a, int b) {
+        if (a == 0) {
+            return b;
+        }
+        if (b == 0) {
+            return a;
+        }
+        random ^= random << 13;
+        random ^= random >>> 17;
+        random ^= random << 5;
+        if ((random >>> 1) % (counts[a] + counts[b]) < counts[a]) {
+            applyShift(a);
+            right[a] = merge(right[a], b);
+            update(a);
+            return a;
+        }
+        applyShift(b);
+        left[b] = merge(a, left[b]);
+        update(b);
+        return b;
+    }
+
+    // builds a balanced tree of the brackets from to to of found
+    private int build(int from, int to) {
+        if (from >= to) {
+            return 0;
+        }
+        ensureCapacity(to - from);
+        final int node;
+        if (free != 0) {
+            node = free;
+            free = left[node];
+        } else {
+            node = allocated++;
+        }
+        final int mid = (from + to) >>> 1;
+        final int l = build(from, mid);
+        final int r = build(mid + 1, to);
+        left[node] = l;
+        right[node] = r;
+        offsets[node] = found.get(mid * 2);
+        shifts[node] = 0;
+        tokens[node] = found.get(mid * 2 + 1);
+        update(node);
+        return node;
+    }
+
+    // chains the nodes of the tree of node to the free nodes
+    private void release(int node) {
+        if (node == 0) {
+            return;
+        }
+        final int r = right[node];
+        release(left[node]);
+        release(r);
+        left[node] = free;
+        free = node;
+    }
+
+    // moves the shift of node into its offset and onto its children
+    private void applyShift(int node) {
+        final int shift = shifts[node];
+        if (shift != 0) {
+            offsets[node] += shift;
+            if (left[node] != 0) {
+                shifts[left[node]] += shift;
+            }
+            if (right[node] != 0) {
+                shifts[right[node]] += shift;
+            }
+            shifts[node] = 0;
+        }
+    }
+
+    private void update(int node) {
+        final int l = left[node];
+        final int r = right[node];
+        final int before = sums[l];
+        final int after = before + step(tokens[node]);
+        counts[node] = counts[l] + 1 + counts[r];
+        sums[node] = after + sums[r];
+        minBefore[node] = Math.min(minBefore[l], Math.min(before, after + minBefore[r]));
+        minAfter[node] = Math.min(minAfter[l], Math.min(after, after + minAfter[r]));
+    }
+
+    // appends the offset and token of every bracket in text[from, to) to found
+    private void tokenize(@NotNull CharSequence text, int from, int to) {
+        final CharClassifier classifier = pairs.classifier();
+        // a bracket that starts at the end of a chunk is matched against the chars after it
+        final int lookahead = pairs.maxLength() - 1;
+        if (chunk.length < CHUNK + lookahead) {
+            chunk = new char[CHUNK + lookahead];
+        }
+        int start = from;
+        while (start < to) {
+            final int length = Math.min(CHUNK, to - start);
+            final int available = Math.min(length + lookahead, to - start);
+            CharArrayUtil.getChars(text, chunk, start, 0, available);
+            int i = 0;
+            while (i < length) {
+                if (classifier.kindOf(chunk[i]) == CharClassifier.TOKEN) {
+                    final int token = classifier.match(chunk, i, available);
+                    if (token != -1) {
+                        found.push(start + i);
+                        found.push(token);
+                        i += pairs.lengthOf(token);
+                        continue;
+                    }
+                }
+                i++;
+            }
+            start += i;
+        }
+    }
+
+    // makes room for count more nodes than are allocated
+    private void ensureCapacity(int count) {
+        if (allocated + count > left.length) {
+            final int length = Math.max(allocated + count, left.length * 2);
+            left = Arrays.copyOf(left, length);
+            right = Arrays.copyOf(right, length);
+            offsets = Arrays.copyOf(offsets, length);
+            shifts = Arrays.copyOf(shifts, length);
+            tokens = Arrays.copyOf(tokens, length);
+            counts = Arrays.copyOf(counts, length);
+            sums = Arrays.copyOf(sums, length);
+            minBefore = Arrays.copyOf(minBefore, length);
+            minAfter = Arrays.copyOf(minAfter, length);
+        }
+    }
+}
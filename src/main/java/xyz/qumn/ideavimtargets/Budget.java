@@ -0,0 +1,105 @@
+package xyz.qumn.ideavimtargets;
+
+import com.intellij.openapi.progress.ProgressManager;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Time budget of the search running on the current thread. The loops whose length
+ * depends on the text call {@link #check} once per chunk or line; it throws
+ * {@link Exceeded} when the deadline has passed, and lets the platform cancel the search
+ * the same way. The search catches {@link Exceeded} and settles for what it found so far.
+ * <p>
+ * Whether a search was cut short is told by {@link #wasExceeded}, which is only true if
+ * {@link #check} actually threw. A budget that runs out after the last check of a search
+ * that completed does not count, so the complete result is still cached and no timeout is
+ * reported for it.
+ * <p>
+ * {@link ProgressManager#checkCanceled} only throws under a progress indicator that was
+ * canceled. The text objects and the preview run on the EDT without one, so it never
+ * throws there. The prefetcher searches in a non-blocking read action, which a write
+ * action cancels through it; the ProcessCanceledException must reach the platform, so
+ * nothing catches it on the way. The workers of {@link TargetFinder#findBoundsAll} run
+ * under the indicator of the calling thread, so they see the cancellation as well.
+ * <p>
+ * The one-off build of the {@link BracketIndex} is not budgeted: it is kept once done,
+ * and cutting it short would only make the next search pay for it again. The
+ * {@link TagIndex} keeps the tags it read before running out and goes on from there, so
+ * its build is budgeted.
+ */
+final class Budget {
+    private static final ThreadLocal<Budget> INSTANCE = ThreadLocal.withInitial(Budget::new);
+    static final long UNLIMITED = Long.MAX_VALUE;
+    private static final Exceeded EXCEEDED = new Exceeded();
+
+    private long deadline = UNLIMITED;
+    // whether check threw since the budget was started, here or in a worker sharing it
+    private volatile boolean exceeded;
+
+    private Budget() {
+    }
+
+    @NotNull
+    static Budget current() {
+        return INSTANCE.get();
+    }
+
+    /**
+     * Starts a budget of millis on this thread, a value of 0 or less lifts it.
+     */
+    void start(int millis) {
+        deadline = millis <= 0 ? UNLIMITED : System.nanoTime() + millis * 1_000_000L;
+        exceeded = false;
+    }
+
+    /**
+     * Carries the deadline of another thread over, so workers share the budget of the
+     * search that forked them.
+     */
+    void startAt(long deadline) {
+        this.deadline = deadline;
+        exceeded = false;
+    }
+
+    long deadline() {
+        return deadline;
+    }
+
+    boolean isSpent() {
+        return deadline != UNLIMITED && System.nanoTime() - deadline >= 0;
+    }
+
+    /**
+     * @return whether {@link #check} threw {@link Exceeded} since the budget was started,
+     * on this thread or in a worker that reported to it through {@link #exceededIn}.
+     */
+    boolean wasExceeded() {
+        return exceeded;
+    }
+
+    /**
+     * Carries over that worker, which shares this budget, ran out of it.
+     */
+    void exceededIn(@NotNull Budget worker) {
+        if (worker.exceeded) {
+            exceeded = true;
+        }
+    }
+
+    void check() {
+        ProgressManager.checkCanceled();
+        if (isSpent()) {
+            exceeded = true;
+            throw EXCEEDED;
+        }
+    }
+
+    /**
+     * Thrown by {@link #check} once the budget is spent. It is shared and carries no stack
+     * trace, so giving up costs nothing.
+     */
+    static final class Exceeded extends RuntimeException {
+        private Exceeded() {
+            super("search budget exceeded", null, false, false);
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package xyz.qumn.ideavimtargets;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+
+/**
+ * Compiled form of a delimiter configuration: tells in O(1) whether a char is a quote or
+ * may start a bracket token, and matches the bracket token starting at an offset.
+ * <p>
+ * Bracket tokens are kept in a trie, so matching costs at most the length of the longest
+ * token whatever the number of tokens, and a single-char token is matched by one table
+ * lookup. ASCII chars are looked up in dense tables, anything else goes through a small
+ * open-addressing table so the lookup never boxes.
+ */
+class CharClassifier {
+    static final byte NONE = 0;
+    // a bracket token starts with this char
+    static final byte TOKEN = 1;
+    static final byte QUOTE = 2;
+
+    private static final int ASCII = 128;
+
+    private final byte[] asciiKinds = new byte[ASCII];
+    // child of the trie root for an ASCII char, 0 if none
+    private final int[] asciiRoots = new int[ASCII];
+
+    private final char[] keys;
+    private final byte[] kinds;
+    private final int[] roots;
+    private final int mask;
+
+    // trie nodes, node 0 is the root; children are kept as sibling lists
+    private int nodes = 1;
+    private char[] labels = new char[16];
+    private int[] firstChildren = new int[16];
+    private int[] nextSiblings = new int[16];
+    private int[] tokens = new int[16];
+
+    /**
+     * @param bracketTokens the bracket tokens, each one is matched as the index it has here.
+     * @param quotes        every quote char.
+     */
+    CharClassifier(@NotNull String[] bracketTokens, @NotNull String quotes) {
+        int nonAscii = 0;
+        for (String token : bracketTokens) {
+            if (token.charAt(0) >= ASCII) {
+                nonAscii++;
+            }
+        }
+        for (int i = 0; i < quotes.length(); i++) {
+            if (quotes.charAt(i) >= ASCII) {
+                nonAscii++;
+            }
+        }
+        int capacity = nonAscii == 0 ? 0 : Integer.highestOneBit(nonAscii * 4 - 1);
+        keys = new char[capacity];
+        kinds = new byte[capacity];
+        roots = new int[capacity];
+        mask = capacity - 1;
+        tokens[0] = -1;
+
+        for (int i = 0; i < bracketTokens.length; i++) {
+            insert(bracketTokens[i], i);
+        }
+        for (int i = 0; i < quotes.length(); i++) {
+            final char ch = quotes.charAt(i);
+            if (ch < ASCII) {
+                asciiKinds[ch] = QUOTE;
+            } else {
+                kinds[slotFor(ch)] = QUOTE;
+            }
+        }
+    }
+
+    byte kindOf(int ch) {
+        if (ch < ASCII) {
+            return asciiKinds[ch];
+        }
+        int slot = slotOf(ch);
+        return slot == -1 ? NONE : kinds[slot];
+    }
+
+    /**
+     * Matches the longest bracket token that starts at chars[i] and ends before chars[end].
+     *
+     * @return the index of the token, or -1 if no token starts there.
+     */
+    int match(@NotNull char[] chars, int i, int end) {
+        int node = rootOf(chars[i]);
+        if (node == 0) {
+            return -1;
+        }
+        int token = tokens[node];
+        for (int j = i + 1; j < end && firstChildren[node] != 0; j++) {
+            node = childOf(node, chars[j]);
+            if (node == 0) {
+                break;
+            }
+            if (tokens[node] != -1) {
+                token = tokens[node];
+            }
+        }
+        return token;
+    }
+
+    /**
+     * @return the index of the single-char bracket token ch, or -1 if ch is not one.
+     */
+    int tokenOf(char ch) {
+        final int node = rootOf(ch);
+        return node == 0 ? -1 : tokens[node];
+    }
+
+    private void insert(@NotNull String token, int index) {
+        final char first = token.charAt(0);
+        int node = rootOf(first);
+        if (node == 0) {
+            node = newNode(first);
+            if (first < ASCII) {
+                asciiKinds[first] = TOKEN;
+                asciiRoots[first] = node;
+            } else {
+                final int slot = slotFor(first);
+                kinds[slot] = TOKEN;
+                roots[slot] = node;
+            }
+        }
+        for (int i = 1; i < token.length(); i++) {
+            int child = childOf(node, token.charAt(i));
+            if (child == 0) {
+                child = newNode(token.charAt(i));
+                nextSiblings[child] = firstChildren[node];
+                firstChildren[node] = child;
+            }
+            node = child;
+        }
+        tokens[node] = index;
+    }
+
+    private int newNode(char label) {
+        if (nodes == labels.length) {
+            labels = Arrays.copyOf(labels, nodes * 2);
+            firstChildren = Arrays.copyOf(firstChildren, nodes * 2);
+            nextSiblings = Arrays.copyOf(nextSiblings, nodes * 2);
+            tokens = Arrays.copyOf(tokens, nodes * 2);
+        }
+        labels[nodes] = label;
+        tokens[nodes] = -1;
+        return nodes++;
+    }
+
+    private int rootOf(char ch) {
+        if (ch < ASCII) {
+            return asciiRoots[ch];
+        }
+        int slot = slotOf(ch);
+        return slot == -1 ? 0 : roots[slot];
+    }
+
+    private int childOf(int node, char label) {
+        for (int child = firstChildren[node]; child != 0; child = nextSiblings[child]) {
+            if (labels[child] == label) {
+                return child;
+            }
+        }
+        return 0;
+    }
+
+    // the slot of ch, claimed for it if it has none yet
+    private int slotFor(char ch) {
+        int slot = hash(ch);
+        while (keys[slot] != 0 && keys[slot] != ch) {
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = ch;
+        return slot;
+    }
+
+    private int slotOf(int ch) {
+        if (keys.length == 0) {
+            return -1;
+        }
+        int slot = hash(ch);
+        while (keys[slot] != 0) {
+            if (keys[slot] == ch) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private int hash(int ch) {
+        return (ch * 0x9E37) & mask;
+    }
+}
@@ -0,0 +1,89 @@
+package xyz.qumn.ideavimtargets;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.editor.EditorFactory;
+import com.intellij.openapi.editor.event.DocumentListener;
+import com.intellij.openapi.editor.event.EditorFactoryEvent;
+import com.intellij.openapi.editor.event.EditorFactoryListener;
+import com.intellij.openapi.util.Disposer;
+import com.intellij.openapi.util.Key;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Ties the indexes kept in the user data of a document to the editors showing it. Every
+ * index listens to its document through a disposable of that document, which is disposed
+ * when the last editor of the document is released, or when the extension is disabled;
+ * that removes the listeners and clears the user data, so a closed file does not keep its
+ * indexes, and a document that is still referenced does not keep feeding them edits.
+ */
+class DocumentLifetime implements EditorFactoryListener, Disposable {
+    private static final Key<Disposable> KEY = Key.create("xyz.qumn.ideavimtargets.DocumentLifetime");
+
+    // parent of the disposables of every document, created again after the extension is disabled
+    @Nullable
+    private static Disposable root;
+
+    /**
+     * Stores index in the user data of document under key and adds it as a listener of
+     * document until the document is released.
+     *
+     * @return a disposable that removes index from document earlier, to replace it.
+     */
+    @NotNull
+    static synchronized <T extends DocumentListener> Disposable attach(@NotNull Document document, @NotNull Key<T> key, @NotNull T index) {
+        Disposable lifetime = document.getUserData(KEY);
+        if (lifetime == null) {
+            if (root == null) {
+                root = Disposer.newDisposable("ideavim-targets indexes");
+            }
+            lifetime = Disposer.newDisposable("ideavim-targets indexes of a document");
+            Disposer.register(root, lifetime);
+            document.putUserData(KEY, lifetime);
+            Disposer.register(lifetime, () -> document.putUserData(KEY, null));
+        }
+        final Disposable attached = Disposer.newDisposable("ideavim-targets index");
+        Disposer.register(lifetime, attached);
+        document.putUserData(key, index);
+        document.addDocumentListener(index, attached);
+        Disposer.register(attached, () -> {
+            if (document.getUserData(key) == index) {
+                document.putUserData(key, null);
+            }
+        });
+        return attached;
+    }
+
+    @Override
+    public void editorReleased(@NotNull EditorFactoryEvent event) {
+        final Editor released = event.getEditor();
+        final Document document = released.getDocument();
+        // the released editor may still be listed while the listeners run
+        for (Editor editor : EditorFactory.getInstance().getEditors(document)) {
+            if (editor != released) {
+                return;
+            }
+        }
+        final Disposable lifetime;
+        synchronized (DocumentLifetime.class) {
+            lifetime = document.getUserData(KEY);
+        }
+        if (lifetime != null) {
+            Disposer.dispose(lifetime);
+        }
+    }
+
+    @Override
+    public void dispose() {
+        final Disposable disposed;
+        synchronized (DocumentLifetime.class) {
+            disposed = root;
+            root = null;
+        }
+        if (disposed != null) {
+            Disposer.dispose(disposed);
+        }
+    }
+}
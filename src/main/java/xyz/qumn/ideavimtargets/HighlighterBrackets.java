@@ -0,0 +1,261 @@
+package xyz.qumn.ideavimtargets;
+
+import com.intellij.lang.Language;
+import com.intellij.lang.LanguageParserDefinitions;
+import com.intellij.lang.ParserDefinition;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.highlighter.EditorHighlighter;
+import com.intellij.openapi.editor.highlighter.HighlighterIterator;
+import com.intellij.psi.StringEscapesTokenTypes;
+import com.intellij.psi.tree.IElementType;
+import com.intellij.util.text.CharArrayUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Finds enclosing pairs through the tokens of the editor highlighter, so brackets in
+ * string literals and comments do not count, e.g. the one in {@code foo(")")}. Literal
+ * tokens are skipped whole and only the chars of code tokens are looked at; the
+ * highlighter is kept up to date by the IDE, so nothing is lexed here.
+ * <p>
+ * A caret inside a literal only matches the brackets of that literal. Consecutive
+ * literal tokens, like a string and its escape sequences, count as one literal.
+ * <p>
+ * Token walks and line pieces check the {@link Budget} of the thread as they go.
+ */
+class HighlighterBrackets {
+    private EditorHighlighter highlighter;
+    private Document document;
+    private CharSequence text;
+    private PairsFinder.Pairs pairs;
+
+    private Language language;
+    @Nullable
+    private ParserDefinition definition;
+
+    private char[] piece = new char[256];
+    // offset and token of every bracket of the current piece
+    private final IntStack found = new IntStack();
+    private final Budget budget = Budget.current();
+    @NotNull
+    private final ScanCounters counters;
+
+    private int position;
+    private int depth;
+    private int remaining;
+    private int openOffset;
+    private int openToken;
+    private int closeOffset;
+    private int closeToken;
+
+    HighlighterBrackets(@NotNull ScanCounters counters) {
+        this.counters = counters;
+    }
+
+    @NotNull
+    HighlighterBrackets reset(@NotNull EditorHighlighter highlighter, @NotNull Document document, @NotNull PairsFinder.Pairs pairs) {
+        this.highlighter = highlighter;
+        this.document = document;
+        this.text = document.getImmutableCharSequence();
+        this.pairs = pairs;
+        return this;
+    }
+
+    /**
+     * Same as {@link BracketIndex#findEnclosing}, within searchLimit chars of position.
+     */
+    boolean findEnclosing(int position, int count, int searchLimit, @NotNull Bounds out) {
+        final int low = Math.max(0, position - searchLimit);
+        final int high = (int) Math.min(text.length(), (long) position + searchLimit + 1);
+        this.position = position;
+        this.depth = 0;
+        this.remaining = count;
+        final HighlighterIterator it = iteratorAt(position);
+        if (!it.atEnd() && isLiteral(it.getTokenType())) {
+            final int literalStart = literalStart(it);
+            final int literalEnd = literalEnd(iteratorAt(position));
+            if (!scanLeft(Math.max(low, literalStart), Math.min(literalEnd, position + pairs.maxLength()))
+                    || !scanRight(openOffset + pairs.lengthOf(openToken), Math.min(high, literalEnd))) {
+                return false;
+            }
+        } else if (!findOpenInCode(it, low) || !findCloseInCode(openOffset + pairs.lengthOf(openToken), high)) {
+            return false;
+        }
+        if (!PairsFinder.Pairs.isMatching(openToken, closeToken)) {
+            return false;
+        }
+        out.set(openOffset, closeOffset, pairs.lengthOf(openToken), pairs.lengthOf(closeToken));
+        return true;
+    }
+
+    /**
+     * @return the start of the literal around offset, or -1 if offset is in code.
+     */
+    int literalAt(int offset) {
+        final HighlighterIterator it = iteratorAt(offset);
+        if (it.atEnd() || !isLiteral(it.getTokenType())) {
+            return -1;
+        }
+        return literalStart(it);
+    }
+
+    @NotNull
+    private HighlighterIterator iteratorAt(int offset) {
+        return highlighter.createIterator(Math.max(0, Math.min(offset, text.length() - 1)));
+    }
+
+    private int literalStart(@NotNull HighlighterIterator it) {
+        int start = it.getStart();
+        for (it.retreat(); !it.atEnd() && isLiteral(it.getTokenType()); it.retreat()) {
+            budget.check();
+            start = it.getStart();
+        }
+        return start;
+    }
+
+    private int literalEnd(@NotNull HighlighterIterator it) {
+        int end = it.getEnd();
+        for (it.advance(); !it.atEnd() && isLiteral(it.getTokenType()); it.advance()) {
+            budget.check();
+            end = it.getEnd();
+        }
+        return end;
+    }
+
+    // walks the runs of code tokens leftwards from the caret token
+    private boolean findOpenInCode(@NotNull HighlighterIterator it, int low) {
+        while (!it.atEnd() && it.getEnd() > low) {
+            budget.check();
+            if (isLiteral(it.getTokenType())) {
+                it.retreat();
+                continue;
+            }
+            final int runEnd = it.getEnd();
+            int runStart = it.getStart();
+            for (it.retreat(); !it.atEnd() && runStart > low && !isLiteral(it.getTokenType()); it.retreat()) {
+                budget.check();
+                runStart = it.getStart();
+            }
+            if (scanLeft(Math.max(low, runStart), Math.min(runEnd, position + pairs.maxLength()))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // walks the runs of code tokens rightwards from the open bracket
+    private boolean findCloseInCode(int from, int high) {
+        if (from >= high) {
+            return false;
+        }
+        final HighlighterIterator it = highlighter.createIterator(from);
+        while (!it.atEnd() && it.getStart() < high) {
+            budget.check();
+            if (isLiteral(it.getTokenType())) {
+                it.advance();
+                continue;
+            }
+            final int runStart = it.getStart();
+            int runEnd = it.getEnd();
+            for (it.advance(); !it.atEnd() && runEnd < high && !isLiteral(it.getTokenType()); it.advance()) {
+                budget.check();
+                runEnd = it.getEnd();
+            }
+            if (scanRight(Math.max(from, runStart), Math.min(high, runEnd))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // visits the brackets of [from, to) right to left, a line at a time, until the count-th open one around position
+    private boolean scanLeft(int from, int to) {
+        int pieceEnd = to;
+        while (pieceEnd > from) {
+            budget.check();
+            final int pieceStart = Math.max(from, document.getLineStartOffset(document.getLineNumber(pieceEnd - 1)));
+            tokenize(pieceStart, pieceEnd);
+            for (int i = found.size() - 2; i >= 0; i -= 2) {
+                final int offset = found.get(i);
+                final int token = found.get(i + 1);
+                final boolean open = PairsFinder.Pairs.isOpenBracket(token);
+                // a close bracket under the caret is the close of the pair around it
+                if (offset > position || (!open && offset + pairs.lengthOf(token) > position)) {
+                    continue;
+                }
+                if (!open) {
+                    depth++;
+                } else if (depth > 0) {
+                    depth--;
+                } else if (--remaining == 0) {
+                    openOffset = offset;
+                    openToken = token;
+                    return true;
+                }
+            }
+            pieceEnd = pieceStart;
+        }
+        return false;
+    }
+
+    // visits the brackets of [from, to) left to right, a line at a time, until the close of the open one
+    private boolean scanRight(int from, int to) {
+        int pieceStart = from;
+        while (pieceStart < to) {
+            budget.check();
+            final int pieceEnd = Math.min(to, document.getLineEndOffset(document.getLineNumber(pieceStart)) + 1);
+            tokenize(pieceStart, pieceEnd);
+            for (int i = 0; i < found.size(); i += 2) {
+                final int token = found.get(i + 1);
+                if (PairsFinder.Pairs.isOpenBracket(token)) {
+                    depth++;
+                } else if (depth > 0) {
+                    depth--;
+                } else {
+                    closeOffset = found.get(i);
+                    closeToken = token;
+                    return true;
+                }
+            }
+            pieceStart = pieceEnd;
+        }
+        return false;
+    }
+
+    private void tokenize(int from, int to) {
+        found.clear();
+        final int length = to - from;
+        if (piece.length < length) {
+            piece = new char[Math.max(length, piece.length * 2)];
+        }
+        CharArrayUtil.getChars(text, piece, from, 0, length);
+        counters.walked += length;
+        final CharClassifier classifier = pairs.classifier();
+        int i = 0;
+        while (i < length) {
+            if (classifier.kindOf(piece[i]) == CharClassifier.TOKEN) {
+                final int token = classifier.match(piece, i, length);
+                if (token != -1) {
+                    found.push(from + i);
+                    found.push(token);
+                    i += pairs.lengthOf(token);
+                    continue;
+                }
+            }
+            i++;
+        }
+    }
+
+    private boolean isLiteral(@NotNull IElementType type) {
+        if (StringEscapesTokenTypes.STRING_LITERAL_ESCAPES.contains(type)) {
+            return true;
+        }
+        final Language tokenLanguage = type.getLanguage();
+        if (tokenLanguage != language) {
+            language = tokenLanguage;
+            definition = LanguageParserDefinitions.INSTANCE.forLanguage(tokenLanguage);
+        }
+        return definition != null
+                && (definition.getCommentTokens().contains(type) || definition.getStringLiteralElements().contains(type));
+    }
+}
@@ -0,0 +1,77 @@
+package xyz.qumn.ideavimtargets;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of non-negative values in power-of-two buckets: bucket k holds the
+ * values below 2^k that do not fit bucket k - 1. Percentiles are reported as the upper
+ * bound of their bucket, so they are exact to within a factor of two.
+ */
+final class Histogram {
+    private static final int BUCKETS = 64;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long value) {
+        final long v = Math.max(0, value);
+        buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(v));
+        count.increment();
+        sum.add(v);
+        // only contended while the maximum grows
+        long current = max.get();
+        while (v > current && !max.compareAndSet(current, v)) {
+            current = max.get();
+        }
+    }
+
+    void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+        count.reset();
+        sum.reset();
+        max.set(0);
+    }
+
+    /**
+     * @return count, mean, p50, p90, p99 and max of the recorded values, followed by unit.
+     */
+    @NotNull
+    String summary(@NotNull String unit) {
+        final long n = count.sum();
+        if (n == 0) {
+            return "none";
+        }
+        return String.format("n=%d mean=%d p50<%d p90<%d p99<%d max=%d %s",
+                n, sum.sum() / n, percentile(n, 50), percentile(n, 90), percentile(n, 99), max.get(), unit);
+    }
+
+    /**
+     * @return the upper bound of the bucket that holds the given percentile, 0 if nothing
+     * was recorded.
+     */
+    long percentile(int percent) {
+        final long n = count.sum();
+        return n == 0 ? 0 : percentile(n, percent);
+    }
+
+    // upper bound of the bucket that holds the given percentile
+    private long percentile(long n, int percent) {
+        final long rank = (n * percent + 99) / 100;
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return i == BUCKETS - 1 ? Long.MAX_VALUE : 1L << i;
+            }
+        }
+        return max.get();
+    }
+}
@@ -1,9 +1,18 @@
 package xyz.qumn.ideavimtargets;
 
+import com.intellij.ide.IdeEventQueue;
+import com.intellij.openapi.editor.Caret;
 import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.editor.EditorFactory;
+import com.intellij.openapi.editor.highlighter.EditorHighlighter;
+import com.intellij.openapi.util.Disposer;
 import com.maddyhome.idea.vim.VimPlugin;
 import com.maddyhome.idea.vim.api.*;
 import com.maddyhome.idea.vim.command.*;
+import com.maddyhome.idea.vim.common.CommandAliasHandler;
+import com.maddyhome.idea.vim.ex.ExOutputModel;
+import com.maddyhome.idea.vim.ex.ranges.Ranges;
 import com.maddyhome.idea.vim.extension.ExtensionHandler;
 import com.maddyhome.idea.vim.extension.VimExtension;
 import com.maddyhome.idea.vim.handler.TextObjectActionHandler;
@@ -15,19 +24,33 @@ import com.maddyhome.idea.vim.listener.SelectionVimListenerSuppressor;
 import com.maddyhome.idea.vim.listener.VimListenerSuppressor;
 import com.maddyhome.idea.vim.newapi.IjVimCaret;
 import com.maddyhome.idea.vim.newapi.IjVimEditor;
-import com.maddyhome.idea.vim.vimscript.model.datatypes.VimString;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 
+import java.util.Arrays;
 import java.util.EnumSet;
+import java.util.List;
 
+import static com.maddyhome.idea.vim.extension.VimExtensionFacade.addCommand;
 import static com.maddyhome.idea.vim.extension.VimExtensionFacade.putExtensionHandlerMapping;
 import static com.maddyhome.idea.vim.extension.VimExtensionFacade.putKeyMappingIfMissing;
-import static xyz.qumn.ideavimtargets.PairsFinder.DEFAULT_PAIRS;
-import static xyz.qumn.ideavimtargets.Utils.getMinNearest;
 
 public class IdeaVimTargetsExtension implements VimExtension {
+    // the separators of targets.vim and the names of their <Plug> mappings
+    private static final String[][] SEPARATORS = {
+            {",", "Comma"}, {".", "Period"}, {";", "Semicolon"}, {":", "Colon"}, {"+", "Plus"}, {"-", "Minus"},
+            {"=", "Equal"}, {"~", "Tilde"}, {"_", "Underscore"}, {"*", "Star"}, {"#", "Hash"}, {"/", "Slash"},
+            {"|", "Bar"}, {"\\", "Backslash"}, {"&", "Ampersand"}, {"$", "Dollar"},
+    };
+
+    @Nullable
+    private TargetPrefetcher prefetcher;
+    @Nullable
+    private TargetPreview preview;
+    @Nullable
+    private DocumentLifetime documents;
+
     @Override
     public @NotNull String getName() {
         return "targets";
@@ -39,22 +62,153 @@ public class IdeaVimTargetsExtension implements VimExtension {
         putExtensionHandlerMapping(MappingMode.XO, VimInjectorKt.getInjector().getParser().parseKeys("<Plug>(OuterPairs)"), getOwner(), new IdeaVimTargetsExtension.TargetsExtensionHandle(false), false);
         putKeyMappingIfMissing(MappingMode.XO, VimInjectorKt.getInjector().getParser().parseKeys("rb"), getOwner(), VimInjectorKt.getInjector().getParser().parseKeys("<Plug>(InnerPairs)"), true);
         putKeyMappingIfMissing(MappingMode.XO, VimInjectorKt.getInjector().getParser().parseKeys("ab"), getOwner(), VimInjectorKt.getInjector().getParser().parseKeys("<Plug>(OuterPairs)"), true);
+        putExtensionHandlerMapping(MappingMode.XO, VimInjectorKt.getInjector().getParser().parseKeys("<Plug>(InnerNextPairs)"), getOwner(), new IdeaVimTargetsExtension.TargetsExtensionHandle(true, TargetSeeker.Direction.NEXT), false);
+        putExtensionHandlerMapping(MappingMode.XO, VimInjectorKt.getInjector().getParser().parseKeys("<Plug>(OuterNextPairs)"), getOwner(), new IdeaVimTargetsExtension.TargetsExtensionHandle(false, TargetSeeker.Direction.NEXT), false);
+        putExtensionHandlerMapping(MappingMode.XO, VimInjectorKt.getInjector().getParser().parseKeys("<Plug>(InnerLastPairs)"), getOwner(), new IdeaVimTargetsExtension.TargetsExtensionHandle(true, TargetSeeker.Direction.LAST), false);
+        putExtensionHandlerMapping(MappingMode.XO, VimInjectorKt.getInjector().getParser().parseKeys("<Plug>(OuterLastPairs)"), getOwner(), new IdeaVimTargetsExtension.TargetsExtensionHandle(false, TargetSeeker.Direction.LAST), false);
+        putKeyMappingIfMissing(MappingMode.XO, VimInjectorKt.getInjector().getParser().parseKeys("rnb"), getOwner(), VimInjectorKt.getInjector().getParser().parseKeys("<Plug>(InnerNextPairs)"), true);
+        putKeyMappingIfMissing(MappingMode.XO, VimInjectorKt.getInjector().getParser().parseKeys("anb"), getOwner(), VimInjectorKt.getInjector().getParser().parseKeys("<Plug>(OuterNextPairs)"), true);
+        putKeyMappingIfMissing(MappingMode.XO, VimInjectorKt.getInjector().getParser().parseKeys("rlb"), getOwner(), VimInjectorKt.getInjector().getParser().parseKeys("<Plug>(InnerLastPairs)"), true);
+        putKeyMappingIfMissing(MappingMode.XO, VimInjectorKt.getInjector().getParser().parseKeys("alb"), getOwner(), VimInjectorKt.getInjector().getParser().parseKeys("<Plug>(OuterLastPairs)"), true);
+        // In visual mode r{char} replaces the selection, so r, ra, rt and the like would shadow
+        // it; the separator, argument and tag objects are only mapped in operator-pending mode
+        // by default. Their <Plug> mappings work in visual mode too, for an xmap of their own.
+        for (String[] separator : SEPARATORS) {
+            final char ch = separator[0].charAt(0);
+            putExtensionHandlerMapping(MappingMode.XO, VimInjectorKt.getInjector().getParser().parseKeys("<Plug>(InnerSeparator" + separator[1] + ")"), getOwner(), new IdeaVimTargetsExtension.TargetsExtensionHandle(true, ch, false), false);
+            putExtensionHandlerMapping(MappingMode.XO, VimInjectorKt.getInjector().getParser().parseKeys("<Plug>(OuterSeparator" + separator[1] + ")"), getOwner(), new IdeaVimTargetsExtension.TargetsExtensionHandle(false, ch, false), false);
+            putKeyMappingIfMissing(MappingMode.O, VimInjectorKt.getInjector().getParser().parseKeys("r" + separator[0]), getOwner(), VimInjectorKt.getInjector().getParser().parseKeys("<Plug>(InnerSeparator" + separator[1] + ")"), true);
+            putKeyMappingIfMissing(MappingMode.O, VimInjectorKt.getInjector().getParser().parseKeys("a" + separator[0]), getOwner(), VimInjectorKt.getInjector().getParser().parseKeys("<Plug>(OuterSeparator" + separator[1] + ")"), true);
+        }
+        putExtensionHandlerMapping(MappingMode.XO, VimInjectorKt.getInjector().getParser().parseKeys("<Plug>(InnerArgument)"), getOwner(), new IdeaVimTargetsExtension.TargetsExtensionHandle(true, ',', true), false);
+        putExtensionHandlerMapping(MappingMode.XO, VimInjectorKt.getInjector().getParser().parseKeys("<Plug>(OuterArgument)"), getOwner(), new IdeaVimTargetsExtension.TargetsExtensionHandle(false, ',', true), false);
+        putKeyMappingIfMissing(MappingMode.O, VimInjectorKt.getInjector().getParser().parseKeys("ra"), getOwner(), VimInjectorKt.getInjector().getParser().parseKeys("<Plug>(InnerArgument)"), true);
+        putKeyMappingIfMissing(MappingMode.O, VimInjectorKt.getInjector().getParser().parseKeys("aa"), getOwner(), VimInjectorKt.getInjector().getParser().parseKeys("<Plug>(OuterArgument)"), true);
+        putExtensionHandlerMapping(MappingMode.XO, VimInjectorKt.getInjector().getParser().parseKeys("<Plug>(InnerTag)"), getOwner(), IdeaVimTargetsExtension.TargetsExtensionHandle.tags(true), false);
+        putExtensionHandlerMapping(MappingMode.XO, VimInjectorKt.getInjector().getParser().parseKeys("<Plug>(OuterTag)"), getOwner(), IdeaVimTargetsExtension.TargetsExtensionHandle.tags(false), false);
+        putKeyMappingIfMissing(MappingMode.O, VimInjectorKt.getInjector().getParser().parseKeys("rt"), getOwner(), VimInjectorKt.getInjector().getParser().parseKeys("<Plug>(InnerTag)"), true);
+        putKeyMappingIfMissing(MappingMode.O, VimInjectorKt.getInjector().getParser().parseKeys("at"), getOwner(), VimInjectorKt.getInjector().getParser().parseKeys("<Plug>(OuterTag)"), true);
+        addCommand("TargetsStats", 0, 1, new StatsCommand());
+        prefetcher = new TargetPrefetcher();
+        EditorFactory.getInstance().getEventMulticaster().addCaretListener(prefetcher, prefetcher);
+        preview = new TargetPreview();
+        IdeEventQueue.getInstance().addPostprocessor(preview, preview);
+        documents = new DocumentLifetime();
+        EditorFactory.getInstance().addEditorFactoryListener(documents, documents);
+    }
+
+    @Override
+    public void dispose() {
+        if (prefetcher != null) {
+            Disposer.dispose(prefetcher);
+            prefetcher = null;
+        }
+        if (preview != null) {
+            Disposer.dispose(preview);
+            preview = null;
+        }
+        if (documents != null) {
+            Disposer.dispose(documents);
+            documents = null;
+        }
+    }
+
+    /**
+     * {@code :TargetsStats} shows the statistics collected while g:targets_stats is set,
+     * {@code :TargetsStats log} writes them to the IDE log and {@code :TargetsStats reset}
+     * clears them.
+     */
+    static class StatsCommand implements CommandAliasHandler {
+        @Override
+        public void execute(@NotNull String command, @NotNull Ranges ranges, @NotNull VimEditor editor, @NotNull ExecutionContext context) {
+            final String[] words = command.trim().split("\\s+");
+            final String argument = words.length > 1 ? words[words.length - 1] : "";
+            switch (argument) {
+                case "":
+                    String report = TargetsStats.report();
+                    if (!TargetsOptions.statsEnabled()) {
+                        report += "\n(g:targets_stats is not set, nothing is being collected)";
+                    }
+                    ExOutputModel.getInstance(((IjVimEditor) editor).getEditor()).output(report);
+                    break;
+                case "log":
+                    TargetsStats.log();
+                    VimPlugin.showMessage("targets statistics written to the IDE log");
+                    break;
+                case "reset":
+                    TargetsStats.reset();
+                    break;
+                default:
+                    VimPlugin.showMessage("usage: TargetsStats [log|reset]");
+                    VimPlugin.indicateError();
+            }
+        }
     }
 
     static class TargetsExtensionHandle implements ExtensionHandler {
         final boolean isInner;
+        private final TargetsTextObjectHandler textObjectHandler;
 
         TargetsExtensionHandle(boolean isInner) {
+            this(isInner, (TargetSeeker.Direction) null);
+        }
+
+        /**
+         * @param seek the direction to seek the target in, or null for the nearest one.
+         */
+        TargetsExtensionHandle(boolean isInner, @Nullable TargetSeeker.Direction seek) {
+            this(isInner, new TargetsTextObjectHandler(isInner, seek, (char) 0, false, false));
+        }
+
+        /**
+         * @param separator the separator of the fields to select, {@code ,} for arguments.
+         */
+        TargetsExtensionHandle(boolean isInner, char separator, boolean argument) {
+            this(isInner, new TargetsTextObjectHandler(isInner, null, separator, argument, false));
+        }
+
+        private TargetsExtensionHandle(boolean isInner, @NotNull TargetsTextObjectHandler textObjectHandler) {
             super();
             this.isInner = isInner;
+            this.textObjectHandler = textObjectHandler;
+        }
+
+        /**
+         * @return the handler of the tag objects, which select the tag pair around the caret.
+         */
+        @NotNull
+        static TargetsExtensionHandle tags(boolean isInner) {
+            return new TargetsExtensionHandle(isInner, new TargetsTextObjectHandler(isInner, null, (char) 0, false, true));
         }
 
 
         static class TargetsTextObjectHandler extends TextObjectActionHandler {
             private final boolean isInner;
+            @Nullable
+            private final TargetSeeker.Direction seek;
+            private final Bounds target = new Bounds();
+            private final TargetSeeker seeker = new TargetSeeker();
+            // 0 unless this selects the fields between separators
+            private final char separator;
+            private final boolean argument;
+            private final SeparatorFinder fields = new SeparatorFinder();
+            // whether this selects the tag pairs instead
+            private final boolean tag;
+            // per caret scratch of getRanges, grown to the most carets seen and reused
+            private Caret[] ijCarets = new Caret[0];
+            private Bounds[] targets = new Bounds[0];
+            // carets left to search, as indices into carets, and their offsets and targets
+            private int[] searched = new int[0];
+            private int[] positions = new int[0];
+            private Bounds[] found = new Bounds[0];
 
-            TargetsTextObjectHandler(boolean isInner) {
+            TargetsTextObjectHandler(boolean isInner, @Nullable TargetSeeker.Direction seek, char separator, boolean argument,
+                                     boolean tag) {
                 this.isInner = isInner;
+                this.seek = seek;
+                this.separator = separator;
+                this.argument = argument;
+                this.tag = tag;
             }
 
             @Nullable
@@ -65,40 +219,367 @@ public class IdeaVimTargetsExtension implements VimExtension {
                                       int count,
                                       int rawCount,
                                       @Nullable Argument argument) {
-                PairsFinder.Pairs bracketPairs = DEFAULT_PAIRS;
-                final String bracketPairsVar = bracketPairsVariable();
-                if (bracketPairsVar != null) {
-                    try {
-                        bracketPairs = PairsFinder.Pairs.fromBracketPairList(bracketPairsVar);
-                    } catch (PairsFinder.Pairs.ParseException parseException) {
-                        @VimNlsSafe String message =
-                                MessageHelper.message("argtextobj.invalid.value.of.g.argtextobj.pairs.0", parseException.getMessage());
-                        VimPlugin.showMessage(message);
-                        VimPlugin.indicateError();
-                        return null;
-                    }
-                }
-
-                int pos = ((IjVimCaret) caret).getCaret().getOffset();
-                Document document = ((IjVimEditor) editor).getEditor().getDocument();
-                final PairsFinder finder = new PairsFinder(document, bracketPairs);
-                final QuoteFinder quoteFinder = new QuoteFinder(document, QuoteFinder.DEFAULT_QUOTES, pos);
-                int[] pairsRange = finder.findBoundsAt(pos, count);
-                int[] quoteRange = quoteFinder.findBoundsAt(pos, count);
-
-                int[] nearestRg = getMinNearest(quoteRange, pairsRange, pos, document);
-
-                if (nearestRg[0] == Integer.MIN_VALUE) {
-                    VimPlugin.showMessage("can not find any pairs or quotes");
-                    VimPlugin.indicateError();
+                if (tag) {
+                    final boolean stats = TargetsOptions.statsEnabled();
+                    final long started = stats ? System.nanoTime() : 0;
+                    Budget.current().start(TargetsOptions.budgetMillis());
+                    final TextRange range = tagRange(((IjVimEditor) editor).getEditor().getDocument(),
+                            ((IjVimCaret) caret).getCaret().getOffset(), count);
+                    final boolean spent = Budget.current().wasExceeded();
+                    recordUncached(stats, started, 1, spent);
+                    if (range == null) {
+                        showTagNotFound(spent);
+                    }
+                    return range;
+                }
+                final PairsFinder.Pairs bracketPairs = configuredPairs();
+                final QuoteFinder.Quotes quotes = configuredQuotes();
+                if (bracketPairs == null || quotes == null) {
                     return null;
                 }
-                if (isInner) {
-                    nearestRg[0]++;
+                if (seek != null) {
+                    final boolean stats = TargetsOptions.statsEnabled();
+                    final long started = stats ? System.nanoTime() : 0;
+                    Budget.current().start(TargetsOptions.budgetMillis());
+                    final TextRange range = seekRange(((IjVimEditor) editor).getEditor().getDocument(), bracketPairs, quotes,
+                            ((IjVimCaret) caret).getCaret().getOffset(), count);
+                    final boolean spent = Budget.current().wasExceeded();
+                    recordUncached(stats, started, 1, spent);
+                    if (range == null) {
+                        showNotFound(spent);
+                    }
+                    return range;
+                }
+                if (separator != 0) {
+                    final boolean stats = TargetsOptions.statsEnabled();
+                    final long started = stats ? System.nanoTime() : 0;
+                    Budget.current().start(TargetsOptions.budgetMillis());
+                    final TextRange range = fieldRange(((IjVimEditor) editor).getEditor().getDocument(), bracketPairs, quotes,
+                            ((IjVimCaret) caret).getCaret().getOffset(), count);
+                    final boolean spent = Budget.current().wasExceeded();
+                    recordUncached(stats, started, 1, spent);
+                    if (range == null) {
+                        showFieldNotFound(spent);
+                    }
+                    return range;
+                }
+
+                final boolean stats = TargetsOptions.statsEnabled();
+                final long started = stats ? System.nanoTime() : 0;
+                final Caret ijCaret = ((IjVimCaret) caret).getCaret();
+                final Editor ijEditor = ((IjVimEditor) editor).getEditor();
+                final Document document = ijEditor.getDocument();
+                final EditorHighlighter highlighter = TargetsOptions.highlighter(ijEditor);
+                boolean grown = false;
+                boolean searched = false;
+                boolean spent = false;
+                // the ancestor chains come from the bracket index, which knows nothing of literals
+                if (highlighter != null || !AncestorChain.grow(ijCaret, document, bracketPairs, isInner, count, target)) {
+                    final int pos = ijCaret.getOffset();
+                    final int searchLimit = TargetsOptions.searchLimit();
+                    final TargetCache cache = TargetCache.forEditor(ijEditor);
+                    if (!cache.get(document, highlighter != null, bracketPairs, quotes, searchLimit, pos, count, target)) {
+                        final Budget budget = Budget.current();
+                        budget.start(TargetsOptions.budgetMillis());
+                        final Bounds nearest = TargetFinder.getInstance().findBoundsAt(document, highlighter, bracketPairs, quotes, pos, count, searchLimit);
+                        if (nearest == null) {
+                            target.clear();
+                        } else {
+                            target.set(nearest);
+                        }
+                        searched = true;
+                        spent = budget.wasExceeded();
+                        // a search cut short may do better next time, do not keep its result
+                        if (!spent) {
+                            cache.put(document, highlighter != null, bracketPairs, quotes, searchLimit, pos, count, target);
+                        }
+                    }
+                    if (target.isFound() && highlighter == null) {
+                        AncestorChain.remember(ijCaret, document, bracketPairs, isInner, target);
+                    }
                 } else {
-                    nearestRg[1]++;
+                    grown = true;
+                }
+                if (stats) {
+                    TargetsStats.record(System.nanoTime() - started, 1, !grown && !searched ? 1 : 0, searched ? 1 : 0,
+                            grown ? 1 : 0, searched ? TargetFinder.getInstance().counters() : null, spent);
+                }
+
+                if (!target.isFound()) {
+                    showNotFound(spent);
+                    return null;
+                }
+                return toTextRange(target);
+            }
+
+            /**
+             * Same as {@link #getRange} for every caret at once, carets without a target get null.
+             * Carets whose selection can grow along their ancestor chain, or whose target is
+             * cached, skip the search.
+             */
+            @Nullable
+            TextRange[] getRanges(@NotNull VimEditor editor, @NotNull List<? extends VimCaret> carets, int count) {
+                if (tag) {
+                    final boolean stats = TargetsOptions.statsEnabled();
+                    final long started = stats ? System.nanoTime() : 0;
+                    Budget.current().start(TargetsOptions.budgetMillis());
+                    final Document document = ((IjVimEditor) editor).getEditor().getDocument();
+                    final TextRange[] ranges = new TextRange[carets.size()];
+                    boolean missing = false;
+                    for (int i = 0; i < ranges.length; i++) {
+                        ranges[i] = tagRange(document, ((IjVimCaret) carets.get(i)).getCaret().getOffset(), count);
+                        missing |= ranges[i] == null;
+                    }
+                    final boolean spent = Budget.current().wasExceeded();
+                    recordUncached(stats, started, ranges.length, spent);
+                    if (missing) {
+                        showTagNotFound(spent);
+                    }
+                    return ranges;
+                }
+                final PairsFinder.Pairs bracketPairs = configuredPairs();
+                final QuoteFinder.Quotes quotes = configuredQuotes();
+                if (bracketPairs == null || quotes == null) {
+                    return null;
+                }
+                if (seek != null) {
+                    final boolean stats = TargetsOptions.statsEnabled();
+                    final long started = stats ? System.nanoTime() : 0;
+                    Budget.current().start(TargetsOptions.budgetMillis());
+                    final Document document = ((IjVimEditor) editor).getEditor().getDocument();
+                    final TextRange[] ranges = new TextRange[carets.size()];
+                    boolean missing = false;
+                    for (int i = 0; i < ranges.length; i++) {
+                        ranges[i] = seekRange(document, bracketPairs, quotes, ((IjVimCaret) carets.get(i)).getCaret().getOffset(), count);
+                        missing |= ranges[i] == null;
+                    }
+                    final boolean spent = Budget.current().wasExceeded();
+                    recordUncached(stats, started, ranges.length, spent);
+                    if (missing) {
+                        showNotFound(spent);
+                    }
+                    return ranges;
+                }
+                if (separator != 0) {
+                    final boolean stats = TargetsOptions.statsEnabled();
+                    final long started = stats ? System.nanoTime() : 0;
+                    Budget.current().start(TargetsOptions.budgetMillis());
+                    final Document document = ((IjVimEditor) editor).getEditor().getDocument();
+                    final TextRange[] ranges = new TextRange[carets.size()];
+                    boolean missing = false;
+                    for (int i = 0; i < ranges.length; i++) {
+                        ranges[i] = fieldRange(document, bracketPairs, quotes, ((IjVimCaret) carets.get(i)).getCaret().getOffset(), count);
+                        missing |= ranges[i] == null;
+                    }
+                    final boolean spent = Budget.current().wasExceeded();
+                    recordUncached(stats, started, ranges.length, spent);
+                    if (missing) {
+                        showFieldNotFound(spent);
+                    }
+                    return ranges;
+                }
+
+                final boolean stats = TargetsOptions.statsEnabled();
+                final long started = stats ? System.nanoTime() : 0;
+                final Editor ijEditor = ((IjVimEditor) editor).getEditor();
+                final Document document = ijEditor.getDocument();
+                final EditorHighlighter highlighter = TargetsOptions.highlighter(ijEditor);
+                final int searchLimit = TargetsOptions.searchLimit();
+                final TargetCache cache = TargetCache.forEditor(ijEditor);
+                final int size = carets.size();
+                ensureCarets(size);
+                int searchedCount = 0;
+                int grownCount = 0;
+                boolean spent = false;
+                for (int i = 0; i < size; i++) {
+                    ijCarets[i] = ((IjVimCaret) carets.get(i)).getCaret();
+                    if (highlighter == null && AncestorChain.grow(ijCarets[i], document, bracketPairs, isInner, count, targets[i])) {
+                        grownCount++;
+                        continue;
+                    }
+                    if (cache.get(document, highlighter != null, bracketPairs, quotes, searchLimit, ijCarets[i].getOffset(), count, targets[i])) {
+                        if (targets[i].isFound() && highlighter == null) {
+                            AncestorChain.remember(ijCarets[i], document, bracketPairs, isInner, targets[i]);
+                        }
+                    } else {
+                        searched[searchedCount++] = i;
+                    }
+                }
+                if (searchedCount > 0) {
+                    for (int i = 0; i < searchedCount; i++) {
+                        positions[i] = ijCarets[searched[i]].getOffset();
+                        found[i] = targets[searched[i]];
+                    }
+                    final Budget budget = Budget.current();
+                    budget.start(TargetsOptions.budgetMillis());
+                    TargetFinder.findBoundsAll(document, highlighter, bracketPairs, quotes, positions, searchedCount, count, searchLimit, found);
+                    spent = budget.wasExceeded();
+                    for (int i = 0; i < searchedCount; i++) {
+                        if (!spent) {
+                            cache.put(document, highlighter != null, bracketPairs, quotes, searchLimit, positions[i], count, found[i]);
+                        }
+                        if (found[i].isFound() && highlighter == null) {
+                            AncestorChain.remember(ijCarets[searched[i]], document, bracketPairs, isInner, found[i]);
+                        }
+                    }
+                }
+
+                if (stats) {
+                    TargetsStats.record(System.nanoTime() - started, size, size - grownCount - searchedCount,
+                            searchedCount, grownCount, searchedCount > 0 ? TargetFinder.getInstance().counters() : null, spent);
+                }
+
+                final TextRange[] ranges = new TextRange[size];
+                boolean missing = false;
+                for (int i = 0; i < size; i++) {
+                    if (targets[i].isFound()) {
+                        ranges[i] = toTextRange(targets[i]);
+                    } else {
+                        missing = true;
+                    }
+                }
+                if (missing) {
+                    showNotFound(spent);
+                }
+                // the carets are not kept alive past the call
+                Arrays.fill(ijCarets, 0, size, null);
+                return ranges;
+            }
+
+            // records a call of the tag, seek or separator objects, which use no cache and count no scans
+            private static void recordUncached(boolean stats, long started, int caretCount, boolean spent) {
+                if (stats) {
+                    TargetsStats.record(System.nanoTime() - started, caretCount, 0, 0, 0, null, spent);
+                }
+            }
+
+            private void ensureCarets(int size) {
+                if (targets.length >= size) {
+                    return;
+                }
+                final int length = Math.max(size, targets.length * 2);
+                ijCarets = new Caret[length];
+                searched = new int[length];
+                positions = new int[length];
+                found = new Bounds[length];
+                final int old = targets.length;
+                targets = Arrays.copyOf(targets, length);
+                for (int i = old; i < length; i++) {
+                    targets[i] = new Bounds();
+                }
+            }
+
+            // the target seek finds from offset, null if there is none
+            @Nullable
+            private TextRange seekRange(@NotNull Document document, @NotNull PairsFinder.Pairs bracketPairs,
+                                        @NotNull QuoteFinder.Quotes quotes, int offset, int count) {
+                if (!seeker.seek(document, bracketPairs, quotes, seek, offset, count, target)) {
+                    return null;
+                }
+                return toTextRange(target);
+            }
+
+            /**
+             * The field around offset, null if there is none. Inner separator fields keep their
+             * whitespace and outer ones take the separator before them, like in targets.vim.
+             * Inner arguments are trimmed and outer ones take the separator after them and the
+             * whitespace up to the next argument, or the separator before them for the last one.
+             */
+            @Nullable
+            private TextRange fieldRange(@NotNull Document document, @NotNull PairsFinder.Pairs bracketPairs,
+                                         @NotNull QuoteFinder.Quotes quotes, int offset, int count) {
+                if (!fields.find(document, bracketPairs, quotes, separator, argument, offset, count, target)) {
+                    return null;
+                }
+                if (!argument) {
+                    return new TextRange(isInner ? target.start + target.openLength : target.start, target.end);
+                }
+                final CharSequence text = document.getImmutableCharSequence();
+                int start = target.start + target.openLength;
+                int end = target.end;
+                while (start < end && Character.isWhitespace(text.charAt(start))) {
+                    start++;
+                }
+                while (end > start && Character.isWhitespace(text.charAt(end - 1))) {
+                    end--;
+                }
+                if (isInner) {
+                    return new TextRange(start, end);
+                }
+                if (fields.rightSeparated) {
+                    end = target.end + 1;
+                    while (end < text.length() && Character.isWhitespace(text.charAt(end))) {
+                        end++;
+                    }
+                } else if (fields.leftSeparated) {
+                    start = target.start;
+                    while (start > 0 && Character.isWhitespace(text.charAt(start - 1))) {
+                        start--;
+                    }
+                }
+                return new TextRange(start, end);
+            }
+
+            // the count-th tag pair around offset, null if there is none
+            @Nullable
+            private TextRange tagRange(@NotNull Document document, int offset, int count) {
+                if (!TagIndex.forDocument(document).findEnclosing(offset, count, target)) {
+                    return null;
+                }
+                return toTextRange(target);
+            }
+
+            private static void showTagNotFound(boolean spent) {
+                VimPlugin.showMessage(spent
+                        ? "search for tags took longer than g:targets_budget_ms"
+                        : "can not find an enclosing tag");
+                VimPlugin.indicateError();
+            }
+
+            private void showFieldNotFound(boolean spent) {
+                VimPlugin.showMessage(spent
+                        ? "search for " + (argument ? "arguments" : "separators") + " took longer than g:targets_budget_ms"
+                        : argument ? "can not find an argument" : "can not find a field between two '" + separator + "'");
+                VimPlugin.indicateError();
+            }
+
+            private static void showNotFound(boolean spent) {
+                VimPlugin.showMessage(spent
+                        ? "search for pairs or quotes took longer than g:targets_budget_ms"
+                        : "can not find any pairs or quotes");
+                VimPlugin.indicateError();
+            }
+
+            @NotNull
+            private TextRange toTextRange(@NotNull Bounds bounds) {
+                if (isInner) {
+                    return new TextRange(bounds.start + bounds.openLength, bounds.end);
+                }
+                return new TextRange(bounds.start, bounds.end + bounds.closeLength);
+            }
+
+            @Nullable
+            private static PairsFinder.Pairs configuredPairs() {
+                try {
+                    return TargetsOptions.pairs();
+                } catch (PairsFinder.Pairs.ParseException parseException) {
+                    @VimNlsSafe String message =
+                            MessageHelper.message("argtextobj.invalid.value.of.g.argtextobj.pairs.0", parseException.getMessage());
+                    VimPlugin.showMessage(message);
+                    VimPlugin.indicateError();
+                    return null;
+                }
+            }
+
+            @Nullable
+            private static QuoteFinder.Quotes configuredQuotes() {
+                try {
+                    return TargetsOptions.quotes();
+                } catch (PairsFinder.Pairs.ParseException parseException) {
+                    VimPlugin.showMessage("invalid value of g:targets_quotes: " + parseException.getMessage());
+                    VimPlugin.indicateError();
+                    return null;
                 }
-                return new TextRange(nearestRg[0], nearestRg[1]);
             }
 
 
@@ -116,35 +597,36 @@ public class IdeaVimTargetsExtension implements VimExtension {
             @NotNull VimStateMachine vimStateMachine = VimStateMachine.getInstance(vimEditor);
             int count = Math.max(1, vimStateMachine.getCommandBuilder().getCount());
 
-            final TargetsTextObjectHandler textObjectHandler = new TargetsTextObjectHandler(isInner);
             if (!vimStateMachine.isOperatorPending()) {
-                editor.nativeCarets().forEach((VimCaret caret) -> {
-                    final TextRange range = textObjectHandler.getRange(editor, caret, context, count, 0, null);
-                    if (range != null) {
-                        try (VimListenerSuppressor.Locked ignored = SelectionVimListenerSuppressor.INSTANCE.lock()) {
-                            if (vimStateMachine.getMode() == VimStateMachine.Mode.VISUAL) {
-                                com.maddyhome.idea.vim.group.visual.EngineVisualGroupKt.vimSetSelection(caret, range.getStartOffset(), range.getEndOffset() - 1, true);
-                            } else {
-                                InlayHelperKt.moveToInlayAwareOffset(((IjVimCaret) caret).getCaret(), range.getStartOffset());
-                            }
+                final List<VimCaret> carets = editor.nativeCarets();
+                if (carets.size() == 1) {
+                    final VimCaret caret = carets.get(0);
+                    select(vimStateMachine, caret, textObjectHandler.getRange(editor, caret, context, count, 0, null));
+                } else {
+                    final TextRange[] ranges = textObjectHandler.getRanges(editor, carets, count);
+                    if (ranges != null) {
+                        for (int i = 0; i < ranges.length; i++) {
+                            select(vimStateMachine, carets.get(i), ranges[i]);
                         }
                     }
-                });
+                }
             } else {
                 vimStateMachine.getCommandBuilder().completeCommandPart(new Argument(new Command(count,
                         textObjectHandler, Command.Type.MOTION, EnumSet.noneOf(CommandFlags.class))));
             }
         }
-    }
 
-
-    @Nullable
-    private static String bracketPairsVariable() {
-        final Object value = VimPlugin.getVariableService().getGlobalVariableValue("targets_pairs");
-        if (value instanceof VimString) {
-            VimString vimValue = (VimString) value;
-            return vimValue.getValue();
+        private static void select(@NotNull VimStateMachine vimStateMachine, @NotNull VimCaret caret, @Nullable TextRange range) {
+            if (range == null) {
+                return;
+            }
+            try (VimListenerSuppressor.Locked ignored = SelectionVimListenerSuppressor.INSTANCE.lock()) {
+                if (vimStateMachine.getMode() == VimStateMachine.Mode.VISUAL) {
+                    com.maddyhome.idea.vim.group.visual.EngineVisualGroupKt.vimSetSelection(caret, range.getStartOffset(), range.getEndOffset() - 1, true);
+                } else {
+                    InlayHelperKt.moveToInlayAwareOffset(((IjVimCaret) caret).getCaret(), range.getStartOffset());
+                }
+            }
         }
-        return null;
     }
 }
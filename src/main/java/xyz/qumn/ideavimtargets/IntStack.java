@@ -0,0 +1,52 @@
+package xyz.qumn.ideavimtargets;
+
+import java.util.Arrays;
+
+/**
+ * Growable stack of primitive ints, meant to be cleared and reused between scans.
+ */
+class IntStack {
+    private int[] items = new int[16];
+    private int size;
+
+    void push(int value) {
+        if (size == items.length) {
+            items = Arrays.copyOf(items, size * 2);
+        }
+        items[size++] = value;
+    }
+
+    int pop() {
+        return items[--size];
+    }
+
+    int peek() {
+        return items[size - 1];
+    }
+
+    int get(int index) {
+        return items[index];
+    }
+
+    void set(int index, int value) {
+        items[index] = value;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    // drops everything above the first size items
+    void truncate(int size) {
+        assert size <= this.size;
+        this.size = size;
+    }
+}
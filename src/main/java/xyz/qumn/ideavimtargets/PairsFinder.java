@@ -3,18 +3,22 @@ package xyz.qumn.ideavimtargets;
 import com.intellij.openapi.editor.Document;
 import org.jetbrains.annotations.Nls;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
-import java.util.Deque;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 public class PairsFinder {
 
     public static class Pairs {
         // NOTE: brackets must match by the position, and ordered by rank (highest to lowest).
+        // Bracket tokens are numbered 2 * i for the i-th open bracket and 2 * i + 1 for its close one.
         @NotNull
-        private final String openBrackets;
+        private final String[] tokens;
+        private final int maxLength;
         @NotNull
-        private final String closeBrackets;
+        private final CharClassifier classifier;
 
         static class ParseException extends Exception {
             public ParseException(@NotNull String message) {
@@ -22,253 +26,243 @@ public class PairsFinder {
             }
         }
 
-        private enum ParseState {
-            OPEN,
-            COLON,
-            CLOSE,
-            COMMA,
-        }
-
         /**
          * Constructs @ref BracketPair from a string of bracket pairs with the same syntax
-         * as VIM's @c matchpairs option: "(:),{:},[:]"
+         * as VIM's @c matchpairs option: "(:),{:},[:]". Brackets may be longer than one
+         * char, e.g. "{{:}},{%:%},<!--:-->". A bracket may start with a colon or a comma,
+         * e.g. "(:),,:;", but not hold one after its first char.
          *
          * @param bracketPairs comma-separated list of colon-separated bracket pairs.
          * @throws Pairs.ParseException if a syntax error is detected.
          */
         @NotNull
         static Pairs fromBracketPairList(@NotNull final String bracketPairs) throws Pairs.ParseException {
-            StringBuilder openBrackets = new StringBuilder();
-            StringBuilder closeBrackets = new StringBuilder();
-            Pairs.ParseState state = Pairs.ParseState.OPEN;
-            for (char ch : bracketPairs.toCharArray()) {
-                switch (state) {
-                    case OPEN:
-                        openBrackets.append(ch);
-                        state = Pairs.ParseState.COLON;
-                        break;
-                    case COLON:
-                        if (ch == ':') {
-                            state = Pairs.ParseState.CLOSE;
-                        } else {
-                            throw new Pairs.ParseException("expecting ':', but got '" + ch + "' instead");
-                        }
-                        break;
-                    case CLOSE:
-                        final char lastOpenBracket = openBrackets.charAt(openBrackets.length() - 1);
-                        if (lastOpenBracket == ch) {
-                            throw new Pairs.ParseException("open and close brackets must be different");
-                        }
-                        closeBrackets.append(ch);
-                        state = Pairs.ParseState.COMMA;
-                        break;
-                    case COMMA:
-                        if (ch == ',') {
-                            state = Pairs.ParseState.OPEN;
-                        } else {
-                            throw new Pairs.ParseException("expecting ',', but got '" + ch + "' instead");
-                        }
-                        break;
+            final List<String> tokens = new ArrayList<>();
+            final int length = bracketPairs.length();
+            int start = 0;
+            while (true) {
+                // the first char of an item belongs to the open bracket, whatever it is
+                final int comma = bracketPairs.indexOf(',', start + 1);
+                int colon = bracketPairs.indexOf(':', start + 1);
+                if (comma != -1 && comma < colon) {
+                    colon = -1; // the colon is in a later item
                 }
+                // and the first char after the colon to the close bracket
+                final int end = colon == -1 || colon == length - 1 ? comma : bracketPairs.indexOf(',', colon + 2);
+                final String item = bracketPairs.substring(start, end == -1 ? length : end);
+                if (colon == -1 || colon == length - 1) {
+                    if (end == -1 && (colon != -1 || item.length() <= 1)) {
+                        throw new Pairs.ParseException("list of pairs is incomplete");
+                    }
+                    throw new Pairs.ParseException("expecting 'open:close', but got '" + item + "' instead");
+                }
+                final String open = bracketPairs.substring(start, colon);
+                final String close = item.substring(colon - start + 1);
+                if (open.equals(close)) {
+                    throw new Pairs.ParseException("open and close brackets must be different");
+                }
+                tokens.add(open);
+                tokens.add(close);
+                if (end == -1) {
+                    return new Pairs(tokens.toArray(new String[0]));
+                }
+                start = end + 1;
             }
-            if (state != Pairs.ParseState.COMMA) {
-                throw new Pairs.ParseException("list of pairs is incomplete");
-            }
-            return new Pairs(openBrackets.toString(), closeBrackets.toString());
         }
 
         Pairs(@NotNull final String openBrackets, @NotNull final String closeBrackets) {
+            this(interleave(openBrackets, closeBrackets));
+        }
+
+        private Pairs(@NotNull final String[] tokens) {
+            this.tokens = tokens;
+            int maxLength = 0;
+            for (String token : tokens) {
+                maxLength = Math.max(maxLength, token.length());
+            }
+            this.maxLength = maxLength;
+            this.classifier = new CharClassifier(tokens, "");
+        }
+
+        @NotNull
+        private static String[] interleave(@NotNull final String openBrackets, @NotNull final String closeBrackets) {
             assert openBrackets.length() == closeBrackets.length();
-            this.openBrackets = openBrackets;
-            this.closeBrackets = closeBrackets;
+            final String[] tokens = new String[openBrackets.length() * 2];
+            for (int i = 0; i < openBrackets.length(); i++) {
+                tokens[i * 2] = String.valueOf(openBrackets.charAt(i));
+                tokens[i * 2 + 1] = String.valueOf(closeBrackets.charAt(i));
+            }
+            return tokens;
         }
 
-        char matchingBracket(char ch) {
-            int idx = closeBrackets.indexOf(ch);
-            if (idx != -1) {
-                return openBrackets.charAt(idx);
-            } else {
-                assert isOpenBracket(ch);
-                idx = openBrackets.indexOf(ch);
-                return closeBrackets.charAt(idx);
+        static boolean isOpenBracket(final int token) {
+            return (token & 1) == 0;
+        }
+
+        /**
+         * @return whether open is an open bracket token and close is its close bracket token.
+         */
+        static boolean isMatching(final int open, final int close) {
+            return isOpenBracket(open) && close == open + 1;
+        }
+
+        int lengthOf(final int token) {
+            return tokens[token].length();
+        }
+
+        // the longest bracket, 1 unless some bracket has several chars
+        int maxLength() {
+            return maxLength;
+        }
+
+        /**
+         * @return a classifier that knows these brackets only.
+         */
+        @NotNull
+        CharClassifier classifier() {
+            return classifier;
+        }
+
+        /**
+         * @throws Pairs.ParseException if a bracket starts with one of quotes, since the sweep
+         *                              would always read that char as the quote.
+         */
+        void checkQuotes(@NotNull QuoteFinder.Quotes quotes) throws Pairs.ParseException {
+            for (String token : tokens) {
+                if (quotes.isQuote(token.charAt(0))) {
+                    throw new Pairs.ParseException("bracket '" + token + "' starts with the quote '" + token.charAt(0) + "'");
+                }
             }
         }
 
-        boolean isCloseBracket(final int ch) {
-            return closeBrackets.indexOf(ch) != -1;
+        /**
+         * @return a classifier that knows both these brackets and the given quotes.
+         */
+        @NotNull
+        CharClassifier classifierWith(@NotNull QuoteFinder.Quotes quotes) {
+            return new CharClassifier(tokens, quotes.delimiter);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Pairs)) return false;
+            return Arrays.equals(tokens, ((Pairs) o).tokens);
         }
 
-        boolean isOpenBracket(final int ch) {
-            return openBrackets.indexOf(ch) != -1;
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(tokens);
         }
     }
 
-    public static final Pairs DEFAULT_PAIRS = new Pairs("(<[{", ")>]}");
-    @NotNull
-    private final CharSequence text;
-    @NotNull
-    private final Document document;
-    @NotNull
-    private final Pairs pairs;
+    // the blocks of targets.vim; < and > are left out, as comparisons and arrows leave them unbalanced
+    public static final Pairs DEFAULT_PAIRS = new Pairs("([{", ")]}");
+    private int textLength;
+    private Document document;
+    private Pairs pairs;
+    @Nullable
+    private HighlighterBrackets highlighterBrackets;
+    private int lineStart;
+    private int searchLimit;
 
-    private int leftBound = Integer.MAX_VALUE;
-    private int rightBound = Integer.MIN_VALUE;
     private @Nls String error = null;
+    private final IntStack stack = new IntStack();
+    // brackets of the caret line and their tokens, fed by the line scan
+    private final IntStack lineBrackets = new IntStack();
+    private final IntStack lineBracketTokens = new IntStack();
+    private final Bounds nextPairs = new Bounds();
 
-    private static final int MAX_SEARCH_LINES = 10;
-    private static final int MAX_SEARCH_OFFSET = MAX_SEARCH_LINES * 80;
-
-    PairsFinder(@NotNull Document document, @NotNull Pairs pairs) {
-        this.text = document.getImmutableCharSequence();
+    /**
+     * @param searchLimit         how far from the caret, in chars, the surrounding pair may reach.
+     * @param highlighterBrackets reads brackets through the highlighter tokens if not null.
+     */
+    void reset(@NotNull Document document, @NotNull Pairs pairs, @Nullable HighlighterBrackets highlighterBrackets,
+               int lineStart, int searchLimit) {
+        this.textLength = document.getTextLength();
         this.document = document;
         this.pairs = pairs;
+        this.highlighterBrackets = highlighterBrackets;
+        this.lineStart = lineStart;
+        this.searchLimit = searchLimit;
+        this.error = null;
+        lineBrackets.clear();
+        lineBracketTokens.clear();
     }
 
-    int[] findBoundsAt(int position, int count) throws IllegalStateException {
-        if (text.length() == 0) {
+    void addBracket(int offset, int token) {
+        lineBrackets.push(offset);
+        lineBracketTokens.push(token);
+    }
+
+    boolean findBoundsAt(int position, int count, @NotNull QuoteFinder quotes, @NotNull Bounds out) throws IllegalStateException {
+        if (textLength == 0) {
             error = "empty document";
-            return new int[]{Integer.MIN_VALUE, Integer.MAX_VALUE};
+            out.clear();
+            return false;
         }
-        int[] surroundPairs = findSurroundPairs(position, count);
-        int[] nextPairs = findNextPairs(position, count);
-        if (isSameLine(surroundPairs[0], position)){
-            return surroundPairs;
+        boolean surround = findSurroundPairs(position, count, out);
+        if (surround && out.start >= lineStart) {
+            return true;
         }
-        if (nextPairs[0] != Integer.MIN_VALUE){
-            return nextPairs;
+        if (findNextPairs(position, count, quotes, nextPairs)) {
+            out.set(nextPairs);
+            return true;
         }
-        return surroundPairs;
+        return surround;
     }
 
-    int[] findSurroundPairs(int position, int count) throws IllegalStateException {
-        leftBound = Math.min(position, leftBound);
-        rightBound = Math.max(position, rightBound);
-        if (rightBound == leftBound) {
-            if (pairs.isCloseBracket(getCharAt(rightBound))) {
-                --leftBound;
-            } else {
-                ++rightBound;
-            }
-        }
-        final int leftLimit = leftLimit(position);
-        final int rightLimit = rightLimit(position);
-        for (int i = 0; i < count; i++) {
-            if (findLeftPair(leftLimit) && findRightPair(rightLimit)) {
-                if (pairs.matchingBracket(getCharAt(leftBound)) != getCharAt(rightBound)) {
-                    error = "error pair";
-                    return new int[]{Integer.MIN_VALUE, Integer.MAX_VALUE};
-                }
-            }
-            if (i + 1 < count) {
-                extendTillNext();
-            }
+    boolean findSurroundPairs(int position, int count, @NotNull Bounds out) throws IllegalStateException {
+        final boolean found = highlighterBrackets != null
+                ? highlighterBrackets.findEnclosing(position, count, searchLimit, out)
+                : BracketIndex.forDocument(document, pairs).findEnclosing(position, count, out);
+        if (!found
+                || out.start < position - searchLimit || out.end > position + searchLimit) {
+            error = "no surround pair";
+            out.clear();
+            return false;
         }
-        return new int[]{getLeftBound(), getRightBound()};
+        return true;
     }
-    int[] findNextPairs(int position, int count){
-        int rightLimit = Utils.LineLeftLimit(document,position);
-        Deque<Integer> stack = new LinkedList<>();
-        int i = position;
-        while (i < rightLimit && count > 0) {
-            final char ch = getCharAt(i);
-            if (pairs.isOpenBracket(ch)) {
-                count--;
+
+    /**
+     * Finds the count-th bracket opened at or after position and its close bracket on the same line.
+     * Brackets quoted differently from the caret, e.g. the one in {@code foo(")")}, are skipped.
+     */
+    boolean findNextPairs(int position, int count, @NotNull QuoteFinder quotes, @NotNull Bounds out) {
+        final int caretQuote = regionAt(position, quotes);
+        // the stack holds indices into lineBrackets
+        stack.clear();
+        for (int i = 0; i < lineBrackets.size(); i++) {
+            final int offset = lineBrackets.get(i);
+            if (offset < position || regionAt(offset, quotes) != caretQuote) {
+                continue;
             }
-            i++;
-        }
-        stack.push(i-1);
-        while (i < rightLimit) {
-            final char ch = getCharAt(i);
-            if (pairs.isOpenBracket(ch)){
+            final int token = lineBracketTokens.get(i);
+            if (stack.isEmpty()) {
+                if (Pairs.isOpenBracket(token) && --count == 0) {
+                    stack.push(i);
+                }
+            } else if (Pairs.isOpenBracket(token)) {
                 stack.push(i);
-            }else if (pairs.isCloseBracket(ch)){
-                if (pairs.matchingBracket(getCharAt(stack.peek())) != ch) {
+            } else {
+                final int openToken = lineBracketTokens.get(stack.peek());
+                if (!Pairs.isMatching(openToken, token)) {
                     break; // a error, e.g. (] {cursor} )
                 }
                 int leftIdx = stack.pop();
-                if (stack.size() == 0){
-                    return new int[]{leftIdx, i};
-                }
-            }
-            i++;
-        }
-        return new int[]{Integer.MIN_VALUE, Integer.MAX_VALUE};
-    }
-
-    private boolean findLeftPair(int leftLimit) {
-        Deque<Character> stack = new LinkedList<>();
-        while (leftBound > leftLimit) {
-            final char ch = getCharAt(leftBound);
-            if (pairs.isOpenBracket(ch)) {
-                if (stack.size() == 0) {
+                if (stack.isEmpty()) {
+                    out.set(lineBrackets.get(leftIdx), offset, pairs.lengthOf(openToken), pairs.lengthOf(token));
                     return true;
                 }
-                if (pairs.matchingBracket(stack.peek()) != ch) {
-                    return false; // a error, e.g. (] {cursor} )
-                } else {
-                    stack.pop();
-                }
-            } else if (pairs.isCloseBracket(ch)) {
-                stack.push(ch);
             }
-            leftBound--;
         }
+        out.clear();
         return false;
     }
 
-    private boolean findRightPair(int rightLimit) {
-        Deque<Character> stack = new LinkedList<>();
-        while (rightBound < rightLimit) {
-            final char ch = getCharAt(rightBound);
-            if (pairs.isCloseBracket(ch)) {
-                if (stack.size() == 0) {
-                    return true;
-                }
-                if (pairs.matchingBracket(stack.peek()) != ch) {
-                    return false; // a error, e.g. ( {cursor} [)
-                } else {
-                    stack.pop();
-                }
-            } else if (pairs.isOpenBracket(ch)) {
-                stack.push(ch);
-            }
-            rightBound++;
-        }
-        return false;
-    }
-    private boolean isSameLine(int offset1, int offset2){
-        return document.getLineNumber(offset1) == document.getLineNumber(offset2);
-    }
-    private char getCharAt(int logicalOffset) {
-        assert logicalOffset < text.length();
-        return text.charAt(logicalOffset);
-    }
-
-
-    private int leftLimit(final int pos) {
-        final int offsetLimit = Math.max(pos - MAX_SEARCH_OFFSET, 0);
-        final int lineNo = document.getLineNumber(pos);
-        final int lineOffsetLimit = document.getLineStartOffset(Math.max(0, lineNo - MAX_SEARCH_LINES));
-        return Math.max(offsetLimit, lineOffsetLimit);
-    }
-
-    private int rightLimit(final int pos) {
-        final int offsetLimit = Math.min(pos + MAX_SEARCH_OFFSET, text.length());
-        final int lineNo = document.getLineNumber(pos);
-        final int lineOffsetLimit = document.getLineEndOffset(Math.min(document.getLineCount() - 1, lineNo + MAX_SEARCH_LINES));
-        return Math.min(offsetLimit, lineOffsetLimit);
-    }
-
-    void extendTillNext() {
-        leftBound--;
-        rightBound++;
-    }
-
-    int getLeftBound() {
-        return leftBound;
-    }
-
-    int getRightBound() {
-        return rightBound;
+    // the quote span or, when reading the highlighter, the literal offset is in
+    private int regionAt(int offset, @NotNull QuoteFinder quotes) {
+        return highlighterBrackets != null ? highlighterBrackets.literalAt(offset) : quotes.innermostSpanAt(offset);
     }
 }
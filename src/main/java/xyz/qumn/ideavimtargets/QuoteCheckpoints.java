@@ -0,0 +1,256 @@
+package xyz.qumn.ideavimtargets;
+
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.event.DocumentEvent;
+import com.intellij.openapi.editor.event.DocumentListener;
+import com.intellij.openapi.util.Key;
+import com.intellij.util.text.CharArrayUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * Quotes left open at the start of every {@link #LINES_PER_CHECKPOINT}-th line of a
+ * document. The quotes open at the start of any line are found by resuming the quote
+ * pairing from the checkpoint above it, so the cost is bounded by the checkpoint distance
+ * rather than by the distance to the start of the string.
+ * <p>
+ * Only multi-line quotes stay open across a line break, so most checkpoints are empty.
+ * Checkpoints are computed on demand and an edit forgets only the ones below the edited
+ * line, the way a restartable lexer does.
+ * <p>
+ * A line too long to be swept whole gets checkpoints of its own, every
+ * {@link #CHARS_PER_LINE_CHECKPOINT} chars, so a sweep that starts inside it pairs its
+ * quotes as a sweep from the line start would. Only the long line asked for last keeps
+ * them, and an edit forgets the ones after the edited offset.
+ * <p>
+ * Computing checkpoints counts against the {@link Budget} of the search that asks for
+ * them. The ones completed before the budget ran out are kept, so the next search goes on
+ * from there.
+ */
+class QuoteCheckpoints implements DocumentListener {
+    private static final Key<QuoteCheckpoints> KEY = Key.create("xyz.qumn.ideavimtargets.QuoteCheckpoints");
+    static final int LINES_PER_CHECKPOINT = 64;
+    static final int CHARS_PER_LINE_CHECKPOINT = 4096;
+    private static final int CHUNK = 8192;
+    private static final int[] NONE = new int[0];
+
+    @NotNull
+    private final Document document;
+    @Nullable
+    private QuoteFinder.Quotes quotes;
+
+    // offset and char of each quote open at the start of line k * LINES_PER_CHECKPOINT
+    private int[][] states = {NONE};
+    // checkpoints below this one are up to date
+    private int valid = 1;
+
+    // start of the long line with checkpoints, -1 if none has any
+    private int longLineStart = -1;
+    // offset and char of each quote open at longLineStart + k * CHARS_PER_LINE_CHECKPOINT
+    private int[][] lineStates = {NONE};
+    // checkpoints of the long line below this one are up to date
+    private int lineValid;
+
+    private final IntStack open = new IntStack();
+    private final IntStack openChars = new IntStack();
+    private final char[] chunk = new char[CHUNK];
+
+    private QuoteCheckpoints(@NotNull Document document) {
+        this.document = document;
+    }
+
+    @NotNull
+    static QuoteCheckpoints forDocument(@NotNull Document document, @NotNull QuoteFinder.Quotes quotes) {
+        QuoteCheckpoints checkpoints = document.getUserData(KEY);
+        if (checkpoints == null) {
+            synchronized (QuoteCheckpoints.class) {
+                checkpoints = document.getUserData(KEY);
+                if (checkpoints == null) {
+                    checkpoints = new QuoteCheckpoints(document);
+                    DocumentLifetime.attach(document, KEY, checkpoints);
+                }
+            }
+        }
+        checkpoints.ensureQuotes(quotes);
+        return checkpoints;
+    }
+
+    /**
+     * Appends the offset and the char of every quote still open at the start of line to out,
+     * outermost first.
+     *
+     * @return the number of chars read to find them.
+     */
+    synchronized int openQuotesAt(int line, @NotNull IntStack out) {
+        final int read = resume(line);
+        copyTo(out);
+        return read;
+    }
+
+    /**
+     * Appends the offset and the char of every quote still open at offset, which is on line,
+     * to out, outermost first. The quotes opened on line before offset count too.
+     *
+     * @return the number of chars read to find them.
+     */
+    synchronized int openQuotesAt(int line, int offset, @NotNull IntStack out) {
+        final int lineStart = document.getLineStartOffset(line);
+        if (offset == lineStart) {
+            return openQuotesAt(line, out);
+        }
+        final CharSequence text = document.getImmutableCharSequence();
+        int read = 0;
+        if (lineStart != longLineStart) {
+            longLineStart = lineStart;
+            lineValid = 0;
+        }
+        if (lineValid == 0) {
+            read += resume(line);
+            lineStates[0] = save();
+            lineValid = 1;
+        }
+        final int checkpoint = (offset - lineStart) / CHARS_PER_LINE_CHECKPOINT;
+        while (lineValid <= checkpoint) {
+            final int from = lineStart + (lineValid - 1) * CHARS_PER_LINE_CHECKPOINT;
+            load(lineStates[lineValid - 1]);
+            advance(text, from, from + CHARS_PER_LINE_CHECKPOINT);
+            read += CHARS_PER_LINE_CHECKPOINT;
+            if (lineStates.length == lineValid) {
+                lineStates = Arrays.copyOf(lineStates, lineValid * 2);
+            }
+            lineStates[lineValid++] = save();
+        }
+        final int from = lineStart + checkpoint * CHARS_PER_LINE_CHECKPOINT;
+        load(lineStates[checkpoint]);
+        advance(text, from, offset);
+        read += offset - from;
+        copyTo(out);
+        return read;
+    }
+
+    // leaves the quotes open at the start of line in open and openChars
+    private int resume(int line) {
+        if (quotes.multiline.isEmpty()) {
+            // nothing stays open across a line break
+            load(NONE);
+            return 0;
+        }
+        final int checkpoint = line / LINES_PER_CHECKPOINT;
+        final CharSequence text = document.getImmutableCharSequence();
+        int read = 0;
+        while (valid <= checkpoint) {
+            final int from = lineStartOf(valid - 1);
+            final int to = lineStartOf(valid);
+            load(states[valid - 1]);
+            advance(text, from, to);
+            read += to - from;
+            if (states.length == valid) {
+                states = Arrays.copyOf(states, valid * 2);
+            }
+            states[valid++] = save();
+        }
+        final int from = lineStartOf(checkpoint);
+        final int to = document.getLineStartOffset(line);
+        load(states[checkpoint]);
+        advance(text, from, to);
+        read += to - from;
+        return read;
+    }
+
+    private void copyTo(@NotNull IntStack out) {
+        for (int i = 0; i < open.size(); i++) {
+            out.push(open.get(i));
+            out.push(openChars.get(i));
+        }
+    }
+
+    private synchronized void ensureQuotes(@NotNull QuoteFinder.Quotes quotes) {
+        if (quotes.equals(this.quotes)) {
+            return;
+        }
+        this.quotes = quotes;
+        valid = 1;
+        longLineStart = -1;
+    }
+
+    @Override
+    public synchronized void documentChanged(@NotNull DocumentEvent event) {
+        // the state at an offset only depends on the text before it
+        final int offset = event.getOffset();
+        final int line = document.getLineNumber(offset);
+        valid = Math.min(valid, line / LINES_PER_CHECKPOINT + 1);
+        if (offset < longLineStart) {
+            longLineStart = -1;
+        } else if (longLineStart != -1) {
+            lineValid = Math.min(lineValid, (offset - longLineStart) / CHARS_PER_LINE_CHECKPOINT + 1);
+        }
+    }
+
+    private int lineStartOf(int checkpoint) {
+        return document.getLineStartOffset(checkpoint * LINES_PER_CHECKPOINT);
+    }
+
+    // pairs the quotes of text[from, to) the same way the caret line sweep does
+    private void advance(@NotNull CharSequence text, int from, int to) {
+        boolean isPreEsc = from > 0 && text.charAt(from - 1) == '\\';
+        final Budget budget = Budget.current();
+        for (int start = from; start < to; start += CHUNK) {
+            budget.check();
+            final int length = Math.min(CHUNK, to - start);
+            CharArrayUtil.getChars(text, chunk, start, 0, length);
+            for (int i = 0; i < length; i++) {
+                final char ch = chunk[i];
+                if (ch == '\n') {
+                    dropSingleLine();
+                } else if (quotes.isQuote(ch) && !isPreEsc) {
+                    if (!openChars.isEmpty() && openChars.peek() == ch) {
+                        open.pop();
+                        openChars.pop();
+                    } else {
+                        open.push(start + i);
+                        openChars.push(ch);
+                    }
+                    continue;
+                }
+                isPreEsc = ch == '\\';
+            }
+        }
+    }
+
+    private void dropSingleLine() {
+        int kept = 0;
+        for (int i = 0; i < open.size(); i++) {
+            if (quotes.isMultiline(openChars.get(i))) {
+                open.set(kept, open.get(i));
+                openChars.set(kept, openChars.get(i));
+                kept++;
+            }
+        }
+        open.truncate(kept);
+        openChars.truncate(kept);
+    }
+
+    private void load(@NotNull int[] state) {
+        open.clear();
+        openChars.clear();
+        for (int i = 0; i < state.length; i += 2) {
+            open.push(state[i]);
+            openChars.push(state[i + 1]);
+        }
+    }
+
+    @NotNull
+    private int[] save() {
+        if (open.isEmpty()) {
+            return NONE;
+        }
+        final int[] state = new int[open.size() * 2];
+        for (int i = 0; i < open.size(); i++) {
+            state[i * 2] = open.get(i);
+            state[i * 2 + 1] = openChars.get(i);
+        }
+        return state;
+    }
+}
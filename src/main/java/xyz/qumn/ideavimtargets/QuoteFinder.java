@@ -3,108 +3,165 @@ package xyz.qumn.ideavimtargets;
 import com.intellij.openapi.editor.Document;
 import org.jetbrains.annotations.NotNull;
 
-import java.util.*;
-
 public class QuoteFinder {
-    private static class Quotes {
-        String delimiter;
+    static class Quotes {
+        @NotNull
+        final String delimiter;
+        // quotes whose strings may span lines, the others are closed by the end of the line
+        @NotNull
+        final String multiline;
+        @NotNull
+        private final CharClassifier classifier;
+
+        /**
+         * Constructs @ref Quotes from a string listing every quote char, e.g. "'\"`", and
+         * the ones among them that may span lines, e.g. "`".
+         *
+         * @throws PairsFinder.Pairs.ParseException if the list is empty or repeats a char,
+         *                                          or a multi-line quote is not in the list.
+         */
+        @NotNull
+        static Quotes fromQuoteList(@NotNull final String quotes, @NotNull final String multiline) throws PairsFinder.Pairs.ParseException {
+            if (quotes.isEmpty()) {
+                throw new PairsFinder.Pairs.ParseException("list of quotes is empty");
+            }
+            for (int i = 0; i < quotes.length(); i++) {
+                if (quotes.indexOf(quotes.charAt(i), i + 1) != -1) {
+                    throw new PairsFinder.Pairs.ParseException("quote '" + quotes.charAt(i) + "' is listed twice");
+                }
+            }
+            for (int i = 0; i < multiline.length(); i++) {
+                if (quotes.indexOf(multiline.charAt(i)) == -1) {
+                    throw new PairsFinder.Pairs.ParseException("multi-line quote '" + multiline.charAt(i) + "' is not a quote");
+                }
+            }
+            return new Quotes(quotes, multiline);
+        }
 
         boolean isQuote(final int ch) {
-            return delimiter.indexOf(ch) != -1;
+            return classifier.kindOf(ch) == CharClassifier.QUOTE;
         }
 
-        Quotes(String delimiter) {
+        boolean isMultiline(final int ch) {
+            return multiline.indexOf(ch) != -1;
+        }
+
+        Quotes(@NotNull String delimiter, @NotNull String multiline) {
             this.delimiter = delimiter;
+            this.multiline = multiline;
+            this.classifier = new CharClassifier(new String[0], delimiter);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Quotes)) return false;
+            Quotes other = (Quotes) o;
+            return delimiter.equals(other.delimiter) && multiline.equals(other.multiline);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * delimiter.hashCode() + multiline.hashCode();
         }
     }
 
-    public static final Quotes DEFAULT_QUOTES = new Quotes("'\"`");
+    // no quote spans lines unless g:targets_multiline_quotes says so
+    public static final Quotes DEFAULT_QUOTES = new Quotes("'\"`", "");
 
-    @NotNull
-    private final CharSequence text;
-    @NotNull
-    private final Document document;
-    private final Quotes quotes;
-    private final int pos;
-    // each element contains three item: start, end, quote
-    private final List<int[]> lineQuotes = new ArrayList<>();
+    private int textLength;
+    // spans of the line, the quote char as their kind
+    private final SpanStore spans = new SpanStore();
+    // unmatched quotes of the line, their offsets and chars
+    private final IntStack stack = new IntStack();
+    private final IntStack stackChars = new IntStack();
     private String error;
+    // spans opened at or after this offset are paired but not kept
+    private int spanLimit;
 
 
-    QuoteFinder(@NotNull Document document, Quotes quotes, int position) {
-        this.text = document.getImmutableCharSequence();
-        this.document = document;
-        this.quotes = quotes;
-        this.pos = position;
+    void reset(@NotNull Document document) {
+        this.textLength = document.getTextLength();
+        this.error = null;
+        this.spanLimit = Integer.MAX_VALUE;
+        spans.clear();
+        stack.clear();
+        stackChars.clear();
     }
 
+    /**
+     * Feeds a quote left open by the lines before the caret line, before the caret line itself.
+     */
+    void carryOpen(int offset, char ch) {
+        stack.push(offset);
+        stackChars.push(ch);
+    }
 
-    public void buildLineQuotes() {
-        int leftLimit = Utils.LineLeftLimit(document, pos);
-        int rightLimit = Utils.LineRightLimit(document, pos);
-        Deque<Integer> stack = new LinkedList<>();
-        boolean isPreEsc = false;
-        for (int i = leftLimit; i <= rightLimit; i++) {
-            char ch = getCharAt(i);
-            if (!isPreEsc && quotes.isQuote(ch)) {
-                if (stack.size() > 0 && getCharAt(stack.peek()) == ch) {
-                    lineQuotes.add(new int[]{stack.pop(), i, ch});
-                } else {
-                    stack.push(i);
-                }
-            } else {
-                isPreEsc = ch == '\\';
+    /**
+     * Closes the line: quotes still open that may not span lines are dropped.
+     */
+    void endLine(@NotNull Quotes quotes) {
+        int kept = 0;
+        for (int i = 0; i < stack.size(); i++) {
+            if (quotes.isMultiline(stackChars.get(i))) {
+                stack.set(kept, stack.get(i));
+                stackChars.set(kept, stackChars.get(i));
+                kept++;
             }
         }
-        lineQuotes.sort(Comparator.comparingInt(a -> a[0]));
+        stack.truncate(kept);
+        stackChars.truncate(kept);
     }
 
-    int[] findBoundsAt(int position, int count) throws IllegalStateException {
-        if (text.length() == 0) {
-            error = "empty document";
-            return new int[]{Integer.MIN_VALUE, Integer.MAX_VALUE};
-        }
-        buildLineQuotes();
-        int nearestNQuoteIdx = getNearestNQuote(pos, count);
-        int nextNearestNQuote = getNextNearestNQuote(pos, count);
-        if (nearestNQuoteIdx == -1 && nextNearestNQuote != -1) {
-            return lineQuotes.get(nextNearestNQuote);
-        }
-        return nearestNQuoteIdx == -1 ? new int[]{Integer.MIN_VALUE, Integer.MAX_VALUE} : lineQuotes.get(nearestNQuoteIdx);
+    /**
+     * @return whether a quote opened before offset is still waiting for its close.
+     */
+    boolean hasOpenBefore(int offset) {
+        return !stack.isEmpty() && stack.get(0) < offset;
     }
 
-    private int getNearestNQuote(int pos, int count) {
-        Queue<Integer> nearestN = new LinkedList<>();
-        for (int i = 0; i < lineQuotes.size(); i++) {
-            int[] range = lineQuotes.get(i);
-            if (range[0] > pos) {
-                break;
-            }
-            if (range[1] >= pos) {
-                if (nearestN.size() >= count) {
-                    nearestN.remove();
-                }
-                nearestN.add(i);
+    void setSpanLimit(int spanLimit) {
+        this.spanLimit = spanLimit;
+    }
+
+    /**
+     * Feeds an unescaped quote of the caret line, in offset order.
+     */
+    void addQuote(int offset, char ch) {
+        if (!stack.isEmpty() && stackChars.peek() == ch) {
+            stackChars.pop();
+            final int start = stack.pop();
+            if (start < spanLimit) {
+                spans.add(start, offset, ch);
             }
+        } else {
+            stack.push(offset);
+            stackChars.push(ch);
         }
-        return nearestN.size() == count ? nearestN.remove() : -1;
     }
 
-    private int getNextNearestNQuote(int pos, int count) {
-        Queue<Integer> nearestN = new LinkedList<>();
-        for (int i = 0; i < lineQuotes.size(); i++) {
-            int[] range = lineQuotes.get(i);
-            if (range[0] < pos) continue;
-            if (nearestN.size() >= count)
-                nearestN.remove();
-            nearestN.add(i);
+    boolean findBoundsAt(int position, int count, @NotNull Bounds out) throws IllegalStateException {
+        if (textLength == 0) {
+            error = "empty document";
+            out.clear();
+            return false;
         }
-        return nearestN.size() == count ? nearestN.remove() : -1;
+        int span = spans.enclosing(position, count);
+        if (span == -1) {
+            span = spans.following(position, count);
+        }
+        if (span == -1) {
+            out.clear();
+            return false;
+        }
+        out.set(spans.start(span), spans.end(span));
+        return true;
     }
 
-
-    private char getCharAt(int logicalOffset) {
-        assert logicalOffset < text.length();
-        return text.charAt(logicalOffset);
+    /**
+     * @return the index of the innermost span around offset, or -1 if offset is not quoted.
+     */
+    int innermostSpanAt(int offset) {
+        return spans.enclosing(offset, 1);
     }
 }
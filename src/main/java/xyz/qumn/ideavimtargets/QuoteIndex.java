@@ -0,0 +1,257 @@
+package xyz.qumn.ideavimtargets;
+
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.event.DocumentEvent;
+import com.intellij.openapi.editor.event.DocumentListener;
+import com.intellij.openapi.util.Key;
+import com.intellij.util.text.CharArrayUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * Every quoted span of a document, sorted both by open and by close offset, for the
+ * seeks to the next and the last target. Quotes are paired the same way as by
+ * {@link QuoteCheckpoints}.
+ * <p>
+ * Spans are indexed on demand from the start of the document up to where a query needs
+ * them. An edit forgets the spans from the edited line on, and the pairing resumes there
+ * from the quotes {@link QuoteCheckpoints} finds open at that line.
+ */
+class QuoteIndex implements DocumentListener {
+    private static final Key<QuoteIndex> KEY = Key.create("xyz.qumn.ideavimtargets.QuoteIndex");
+    private static final int CHUNK = 8192;
+    // close offset of a span whose quote is still open where the indexing stopped
+    private static final int OPEN = -1;
+    // close offset of a span whose quote was closed by the end of its line
+    private static final int DROPPED = -2;
+
+    @NotNull
+    private final Document document;
+    @Nullable
+    private QuoteFinder.Quotes quotes;
+
+    // open and close offsets of every span, by open offset
+    private int spanCount;
+    private int[] opens = new int[16];
+    private int[] closes = new int[16];
+    // the spans closed so far, by close offset
+    private int closedCount;
+    private int[] byClose = new int[16];
+
+    // the spans opened before this offset are indexed
+    private int indexedTo;
+    // the first line start an edit may have changed, if it is below indexedTo
+    private int dirtyFrom = Integer.MAX_VALUE;
+    // the spans open at indexedTo, innermost last, and their quote chars
+    private final IntStack open = new IntStack();
+    private final IntStack openChars = new IntStack();
+    private boolean isPreEsc;
+    private final IntStack carried = new IntStack();
+    private final char[] chunk = new char[CHUNK];
+
+    private QuoteIndex(@NotNull Document document) {
+        this.document = document;
+    }
+
+    @NotNull
+    static QuoteIndex forDocument(@NotNull Document document, @NotNull QuoteFinder.Quotes quotes) {
+        QuoteIndex index = document.getUserData(KEY);
+        if (index == null) {
+            synchronized (QuoteIndex.class) {
+                index = document.getUserData(KEY);
+                if (index == null) {
+                    index = new QuoteIndex(document);
+                    DocumentLifetime.attach(document, KEY, index);
+                }
+            }
+        }
+        index.ensureQuotes(quotes);
+        return index;
+    }
+
+    /**
+     * Appends the first count spans opened after position to out, nearest first, as open
+     * and close offsets.
+     */
+    synchronized void spansAfter(int position, int count, @NotNull IntStack out) {
+        applyEdits();
+        final int textLength = document.getTextLength();
+        index(position + 1);
+        int found = 0;
+        int i = lowerBound(position + 1);
+        // index further until count closed spans are known, the last ones may still be open
+        for (int reach = indexedTo; ; reach = (int) Math.min(textLength, reach * 2L)) {
+            index(reach);
+            final boolean complete = indexedTo >= textLength;
+            // a span still open waits for the indexing to reach its close, unless it never closes
+            for (; i < spanCount && found < count && (complete || closes[i] != OPEN); i++) {
+                if (closes[i] >= 0) {
+                    out.push(opens[i]);
+                    out.push(closes[i]);
+                    found++;
+                }
+            }
+            if (found == count || complete) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Same as {@link #spansAfter} for the spans closed before position, the one closed
+     * nearest to it first.
+     */
+    synchronized void spansBefore(int position, int count, @NotNull IntStack out) {
+        applyEdits();
+        index(position);
+        int lo = 0;
+        int hi = closedCount;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (closes[byClose[mid]] < position) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        for (int i = lo - 1; i >= 0 && count > 0; i--, count--) {
+            out.push(opens[byClose[i]]);
+            out.push(closes[byClose[i]]);
+        }
+    }
+
+    private synchronized void ensureQuotes(@NotNull QuoteFinder.Quotes quotes) {
+        if (quotes.equals(this.quotes)) {
+            return;
+        }
+        this.quotes = quotes;
+        spanCount = 0;
+        closedCount = 0;
+        indexedTo = 0;
+        dirtyFrom = Integer.MAX_VALUE;
+        open.clear();
+        openChars.clear();
+        isPreEsc = false;
+    }
+
+    @Override
+    public synchronized void documentChanged(@NotNull DocumentEvent event) {
+        // the pairing at a line start only depends on the text above it
+        final int lineStart = document.getLineStartOffset(document.getLineNumber(event.getOffset()));
+        dirtyFrom = Math.min(dirtyFrom, lineStart);
+    }
+
+    // forgets the spans from dirtyFrom on and resumes the pairing there
+    private void applyEdits() {
+        if (dirtyFrom >= indexedTo) {
+            dirtyFrom = Integer.MAX_VALUE;
+            return;
+        }
+        final int from = dirtyFrom;
+        dirtyFrom = Integer.MAX_VALUE;
+        spanCount = lowerBound(from);
+        int lo = 0;
+        int hi = closedCount;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (closes[byClose[mid]] < from) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        closedCount = lo;
+        // the spans still open at from were opened above it, so they are indexed already
+        open.clear();
+        openChars.clear();
+        carried.clear();
+        QuoteCheckpoints.forDocument(document, quotes).openQuotesAt(document.getLineNumber(from), carried);
+        for (int i = 0; i < carried.size(); i += 2) {
+            final int span = lowerBound(carried.get(i));
+            closes[span] = OPEN;
+            open.push(span);
+            openChars.push(carried.get(i + 1));
+        }
+        indexedTo = from;
+        isPreEsc = false;
+    }
+
+    // pairs the quotes of the text up to offset to
+    private void index(int to) {
+        final CharSequence text = document.getImmutableCharSequence();
+        final int end = Math.min(to, text.length());
+        final Budget budget = Budget.current();
+        while (indexedTo < end) {
+            budget.check();
+            final int start = indexedTo;
+            final int length = Math.min(CHUNK, end - start);
+            CharArrayUtil.getChars(text, chunk, start, 0, length);
+            for (int i = 0; i < length; i++) {
+                final char ch = chunk[i];
+                if (ch == '\n') {
+                    dropSingleLine();
+                } else if (quotes.isQuote(ch) && !isPreEsc) {
+                    if (!openChars.isEmpty() && openChars.peek() == ch) {
+                        close(open.pop(), start + i);
+                        openChars.pop();
+                    } else {
+                        open.push(addSpan(start + i));
+                        openChars.push(ch);
+                    }
+                    continue;
+                }
+                isPreEsc = ch == '\\';
+            }
+            // the state above is in sync with indexedTo between chunks, so a spent budget leaves it usable
+            indexedTo = start + length;
+        }
+    }
+
+    private void dropSingleLine() {
+        int kept = 0;
+        for (int i = 0; i < open.size(); i++) {
+            if (quotes.isMultiline(openChars.get(i))) {
+                open.set(kept, open.get(i));
+                openChars.set(kept, openChars.get(i));
+                kept++;
+            } else {
+                closes[open.get(i)] = DROPPED;
+            }
+        }
+        open.truncate(kept);
+        openChars.truncate(kept);
+    }
+
+    private int addSpan(int offset) {
+        if (spanCount == opens.length) {
+            opens = Arrays.copyOf(opens, spanCount * 2);
+            closes = Arrays.copyOf(closes, spanCount * 2);
+            byClose = Arrays.copyOf(byClose, spanCount * 2);
+        }
+        opens[spanCount] = offset;
+        closes[spanCount] = OPEN;
+        return spanCount++;
+    }
+
+    private void close(int span, int offset) {
+        closes[span] = offset;
+        byClose[closedCount++] = span;
+    }
+
+    // first span whose open offset is >= offset
+    private int lowerBound(int offset) {
+        int lo = 0;
+        int hi = spanCount;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (opens[mid] < offset) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}
@@ -0,0 +1,36 @@
+package xyz.qumn.ideavimtargets;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Work done by one search, counted by the loops that do it. Each {@link TargetFinder}
+ * owns one and clears it when a search starts, so counting costs a plain add per sweep.
+ */
+final class ScanCounters {
+    // chars of the caret line swept
+    long swept;
+    // chars read after the caret line to close multi-line strings
+    long followed;
+    // chars of code and literal tokens read through the highlighter
+    long walked;
+    // chars read to compute quote checkpoints
+    long checkpointed;
+    // the widest window swept
+    int window;
+
+    void clear() {
+        swept = 0;
+        followed = 0;
+        walked = 0;
+        checkpointed = 0;
+        window = 0;
+    }
+
+    void add(@NotNull ScanCounters other) {
+        swept += other.swept;
+        followed += other.followed;
+        walked += other.walked;
+        checkpointed += other.checkpointed;
+        window = Math.max(window, other.window);
+    }
+}
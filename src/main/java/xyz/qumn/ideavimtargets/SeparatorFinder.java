@@ -0,0 +1,121 @@
+package xyz.qumn.ideavimtargets;
+
+import com.intellij.openapi.editor.Document;
+import com.intellij.util.text.CharArrayUtil;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Finds the field around the caret for the separator objects ({@code r,}, {@code a|} ...)
+ * and the argument objects ({@code ra}, {@code aa}). A field is delimited by separators at
+ * the nesting depth of the caret: the region searched is the count-th pair enclosing the
+ * caret, which comes from the {@link BracketIndex} like the ancestor chains, and the pairs
+ * nested in that region are skipped whole using the same index, so only the chars at the
+ * caret's depth are read, once, up to the separator after the caret.
+ * <p>
+ * Separators inside quotes do not count. Separator fields do not span lines and need a
+ * separator on both sides, like in targets.vim; an argument may also be delimited by the
+ * brackets of its pair, or by its line when no pair encloses the caret.
+ */
+class SeparatorFinder {
+    private static final int CHUNK = 8192;
+
+    private final Bounds region = new Bounds();
+    // open offsets and offsets past the close of the pairs nested in the region, two slots each
+    private final IntStack nested = new IntStack();
+    private final char[] chunk = new char[CHUNK];
+
+    // whether the field last found is delimited by a separator on that side
+    boolean leftSeparated;
+    boolean rightSeparated;
+
+    /**
+     * @param separator the separator char, {@code ,} for arguments.
+     * @param argument  whether this is an argument, which the enclosing brackets may delimit.
+     * @return false if there is no such field or the budget ran out, otherwise out holds
+     * the offsets of the delimiters of the field and their lengths, 0 for the line bounds.
+     */
+    boolean find(@NotNull Document document, @NotNull PairsFinder.Pairs pairs, @NotNull QuoteFinder.Quotes quotes,
+                 char separator, boolean argument, int position, int count, @NotNull Bounds out) {
+        out.clear();
+        nested.clear();
+        leftSeparated = false;
+        rightSeparated = false;
+        try {
+            final BracketIndex index = BracketIndex.forDocument(document, pairs);
+            final int line = document.getLineNumber(position);
+            int left = document.getLineStartOffset(line);
+            int right = document.getLineEndOffset(line);
+            int leftLength = 0;
+            int rightLength = 0;
+            if (index.findEnclosing(position, count, region)) {
+                if (argument || region.start + region.openLength > left) {
+                    left = region.start;
+                    leftLength = region.openLength;
+                }
+                if (argument || region.end < right) {
+                    right = region.end;
+                    rightLength = region.closeLength;
+                }
+            } else if (count > 1) {
+                return false;
+            }
+            final int from = left + leftLength;
+            // a caret on a bracket of the region belongs to the field next to it
+            final int caret = Math.max(from, Math.min(position, right));
+            index.outermostPairs(from, right, nested);
+
+            final CharSequence text = document.getImmutableCharSequence();
+            final Budget budget = Budget.current();
+            int next = 0;
+            int quote = 0;
+            boolean isPreEsc = false;
+            int chunkStart = from;
+            int chunkEnd = from;
+            for (int offset = from; offset < right; offset++) {
+                if (next < nested.size() && offset == nested.get(next)) {
+                    offset = nested.get(next + 1) - 1;
+                    next += 2;
+                    isPreEsc = false;
+                    continue;
+                }
+                if (offset >= chunkEnd) {
+                    budget.check();
+                    chunkStart = offset;
+                    chunkEnd = Math.min(right, offset + CHUNK);
+                    CharArrayUtil.getChars(text, chunk, chunkStart, 0, chunkEnd - chunkStart);
+                }
+                final char ch = chunk[offset - chunkStart];
+                if (ch == '\n') {
+                    if (quote != 0 && !quotes.isMultiline(quote)) {
+                        quote = 0;
+                    }
+                } else if (quotes.isQuote(ch) && !isPreEsc) {
+                    if (quote == 0) {
+                        quote = ch;
+                    } else if (quote == ch) {
+                        quote = 0;
+                    }
+                } else if (ch == separator && quote == 0) {
+                    if (offset <= caret) {
+                        left = offset;
+                        leftLength = 1;
+                        leftSeparated = true;
+                    } else {
+                        right = offset;
+                        rightLength = 1;
+                        rightSeparated = true;
+                        break;
+                    }
+                }
+                isPreEsc = ch == '\\';
+            }
+            if (!argument && !(leftSeparated && rightSeparated)) {
+                return false;
+            }
+            out.set(left, right, leftLength, rightLength);
+            return true;
+        } catch (Budget.Exceeded e) {
+            return false;
+        }
+    }
+}
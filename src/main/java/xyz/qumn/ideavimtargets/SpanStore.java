@@ -0,0 +1,121 @@
+package xyz.qumn.ideavimtargets;
+
+import java.util.Arrays;
+
+/**
+ * Spans sorted by start offset, stored as parallel primitive arrays of start, end and
+ * delimiter kind, meant to be cleared and reused between scans. The spans must nest, as
+ * the spans paired through a stack do; then the spans around an offset are the ancestors
+ * of the last span starting at or before it, so both the enclosing and the following
+ * lookups start with a binary search instead of a walk over the line.
+ */
+class SpanStore {
+    private int size;
+    private int[] starts = new int[16];
+    private int[] ends = new int[16];
+    private int[] kinds = new int[16];
+    // index of the innermost span around the i-th span, -1 at the top level
+    private int[] parents = new int[16];
+    private boolean parentsValid;
+    private final IntStack stack = new IntStack();
+
+    void clear() {
+        size = 0;
+        parentsValid = false;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int start(int span) {
+        return starts[span];
+    }
+
+    int end(int span) {
+        return ends[span];
+    }
+
+    int kind(int span) {
+        return kinds[span];
+    }
+
+    /**
+     * Adds a span; spans closed innermost first arrive nearly in order, so an insertion step
+     * is enough to keep them sorted.
+     */
+    void add(int start, int end, int kind) {
+        if (size == starts.length) {
+            starts = Arrays.copyOf(starts, size * 2);
+            ends = Arrays.copyOf(ends, size * 2);
+            kinds = Arrays.copyOf(kinds, size * 2);
+            parents = Arrays.copyOf(parents, size * 2);
+        }
+        int i = size;
+        while (i > 0 && starts[i - 1] > start) {
+            starts[i] = starts[i - 1];
+            ends[i] = ends[i - 1];
+            kinds[i] = kinds[i - 1];
+            i--;
+        }
+        starts[i] = start;
+        ends[i] = end;
+        kinds[i] = kind;
+        size++;
+        parentsValid = false;
+    }
+
+    /**
+     * @return the index of the count-th innermost span with start <= offset <= end, or -1.
+     */
+    int enclosing(int offset, int count) {
+        ensureParents();
+        int span = lowerBound(offset + 1) - 1;
+        // every span around offset is around this one too
+        while (span != -1 && ends[span] < offset) {
+            span = parents[span];
+        }
+        while (span != -1 && --count > 0) {
+            span = parents[span];
+        }
+        return span;
+    }
+
+    /**
+     * @return the index of the count-th span starting at or after offset, or -1.
+     */
+    int following(int offset, int count) {
+        final int span = lowerBound(offset) + count - 1;
+        return span < size ? span : -1;
+    }
+
+    private void ensureParents() {
+        if (parentsValid) {
+            return;
+        }
+        stack.clear();
+        for (int i = 0; i < size; i++) {
+            while (!stack.isEmpty() && ends[stack.peek()] < starts[i]) {
+                stack.pop();
+            }
+            parents[i] = stack.isEmpty() ? -1 : stack.peek();
+            stack.push(i);
+        }
+        parentsValid = true;
+    }
+
+    // first span whose start is >= offset
+    private int lowerBound(int offset) {
+        int lo = 0;
+        int hi = size;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (starts[mid] < offset) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}
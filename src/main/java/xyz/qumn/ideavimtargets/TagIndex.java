@@ -0,0 +1,576 @@
+package xyz.qumn.ideavimtargets;
+
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.event.DocumentEvent;
+import com.intellij.openapi.editor.event.DocumentListener;
+import com.intellij.openapi.util.Key;
+import com.intellij.util.text.CharArrayUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+
+/**
+ * Open and close tags of a markup document, for the tag objects. The tags are read by a
+ * streaming tokenizer that sees one char at a time and never looks back: comments,
+ * declarations, self-closing tags and quoted or braced attribute values are skipped, and
+ * a {@code <} that turns out to open no tag, as in {@code a < b} or {@code a<b && c>d},
+ * costs nothing more than the chars it read: a tag name must follow it at once, and its
+ * attributes must not hold a {@code &}, {@code |}, {@code ;} or {@code ,} outside a value.
+ * Anything else reads as a tag, the {@code <T>} of {@code List<T>} too; such a tag stays
+ * unmatched unless a {@code </T>} follows, so it never encloses the caret. Tag names are
+ * kept as case-insensitive hashes and lengths, and compared in the text when the hashes
+ * match.
+ * <p>
+ * A close tag matches the nearest open tag of the same name, and the open tags it passes
+ * over stay unmatched, the way browsers close {@code <li>} or {@code <p>}. Edits drop the
+ * tags they touch and move the others by a shift pending on every tag from one index on,
+ * so an edit next to the last one moves nothing but that index. The text between is
+ * tokenized again at the next query, from the last tag before it until the tokenizer
+ * meets a kept tag again; the pairs are only matched again when that drops or adds tags,
+ * in one pass over all of them.
+ * <p>
+ * Tokenizing is budgeted, the first time through the whole document too. A query that
+ * runs out of its {@link Budget} keeps the tags read so far and the next one goes on from
+ * there.
+ */
+class TagIndex implements DocumentListener {
+    private static final Key<TagIndex> KEY = Key.create("xyz.qumn.ideavimtargets.TagIndex");
+    private static final int CHUNK = 8192;
+
+    // tokenizer states
+    private static final int TEXT = 0;
+    // after '<'
+    private static final int OPEN = 1;
+    // after "</"
+    private static final int SLASH = 2;
+    private static final int NAME = 3;
+    private static final int ATTRIBUTES = 4;
+    // after "<!" and "<!-"
+    private static final int BANG = 5;
+    private static final int BANG_DASH = 6;
+    private static final int COMMENT = 7;
+    // "<!DOCTYPE ...>", "<?xml ...?>"
+    private static final int DECLARATION = 8;
+
+    @NotNull
+    private final Document document;
+    private boolean built;
+
+    // start offsets of the tags, their offsets past the '>', the hashes of their names and
+    // their name lengths shifted left once, with the lowest bit set for close tags
+    private int size;
+    private int[] starts = new int[16];
+    private int[] ends = new int[16];
+    private int[] names = new int[16];
+    private int[] kinds = new int[16];
+    // the offsets of the tags from shiftFrom on are shift chars further than stored
+    private int shiftFrom;
+    private int shift;
+
+    // the text in [dirtyFrom, dirtyTo) is not tokenized yet, both -1 if there is none
+    private int dirtyFrom = -1;
+    private int dirtyTo = -1;
+    // where a tokenizing cut short by the budget stopped between tags, -1 if none did;
+    // the next one starts there if no edit came before it
+    private int settled = -1;
+
+    private boolean structureValid;
+    private int[] partners = new int[16];
+    // the open tag of the innermost pair around the i-th tag, -1 at the top level
+    private int[] parents = new int[16];
+    private final IntStack stack = new IntStack();
+    // an open-addressing table from the hash and the length of a name to the topmost open
+    // tag of that name on the stack, -1 if none; a slot of length 0 is free
+    private int[] headNames = new int[32];
+    private int[] headLengths = new int[32];
+    private int[] heads = new int[32];
+
+    // the tags found by the last tokenize call, four slots each as in the arrays above
+    private final IntStack found = new IntStack();
+    private final char[] chunk = new char[CHUNK];
+    private int state;
+    private int tagStart;
+    private boolean close;
+    private int name;
+    private int nameLength;
+    private int quote;
+    private int braces;
+    // whether the attributes are in a value that is not quoted
+    private boolean unquoted;
+    private char previous;
+    private int dashes;
+    // the offset of the chunk being tokenized
+    private int read;
+    // a tag found at or after resyncFrom that starts where the kept tag resyncAt starts
+    // ends the tokenizing, see applyEdits
+    private int resyncFrom;
+    private int resyncAt;
+    private boolean resynced;
+
+    private TagIndex(@NotNull Document document) {
+        this.document = document;
+    }
+
+    @NotNull
+    static TagIndex forDocument(@NotNull Document document) {
+        TagIndex index = document.getUserData(KEY);
+        if (index == null) {
+            synchronized (TagIndex.class) {
+                index = document.getUserData(KEY);
+                if (index == null) {
+                    index = new TagIndex(document);
+                    DocumentLifetime.attach(document, KEY, index);
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Finds the count-th tag pair enclosing position. A caret on an open or close tag is
+     * enclosed by its pair.
+     *
+     * @return false if there is no such pair or the budget ran out, otherwise out holds the
+     * offsets of the open and the close tag and their lengths.
+     */
+    synchronized boolean findEnclosing(int position, int count, @NotNull Bounds out) {
+        try {
+            ensureBuilt();
+        } catch (Budget.Exceeded e) {
+            out.clear();
+            return false;
+        }
+        ensureStructure();
+        final int last = lowerBound(position + 1) - 1;
+        int open;
+        if (last == -1) {
+            open = -1;
+        } else if (isClose(last)) {
+            open = position < endOf(last) && partners[last] != -1 ? partners[last] : parents[last];
+        } else {
+            // the close tag of a matched open tag starts after position
+            open = partners[last] != -1 ? last : parents[last];
+        }
+        while (open != -1 && --count > 0) {
+            open = parents[open];
+        }
+        if (open == -1) {
+            out.clear();
+            return false;
+        }
+        final int close = partners[open];
+        out.set(startOf(open), startOf(close), ends[open] - starts[open], ends[close] - starts[close]);
+        return true;
+    }
+
+    private boolean isClose(int tag) {
+        return (kinds[tag] & 1) != 0;
+    }
+
+    private int startOf(int tag) {
+        return tag < shiftFrom ? starts[tag] : starts[tag] + shift;
+    }
+
+    private int endOf(int tag) {
+        return tag < shiftFrom ? ends[tag] : ends[tag] + shift;
+    }
+
+    // moves the start of the pending shift to tag, storing the offsets of the tags between as they are
+    private void moveShift(int tag) {
+        for (int i = shiftFrom; i < tag; i++) {
+            starts[i] += shift;
+            ends[i] += shift;
+        }
+        for (int i = tag; i < shiftFrom; i++) {
+            starts[i] -= shift;
+            ends[i] -= shift;
+        }
+        shiftFrom = tag;
+    }
+
+    private void ensureBuilt() {
+        if (!built) {
+            built = true;
+            dirtyFrom = 0;
+            dirtyTo = document.getTextLength();
+            size = 0;
+            shiftFrom = 0;
+            shift = 0;
+            settled = -1;
+        }
+        if (dirtyFrom != -1) {
+            applyEdits();
+        }
+    }
+
+    @Override
+    public synchronized void documentChanged(@NotNull DocumentEvent event) {
+        if (!built) {
+            return;
+        }
+        final int start = event.getOffset();
+        final int oldEnd = start + event.getOldLength();
+        final int newEnd = start + event.getNewLength();
+        final int delta = newEnd - oldEnd;
+        // the tags the edit touches go, the ones after it move
+        final int from = lowerBoundEnd(start + 1);
+        final int to = lowerBound(oldEnd);
+        moveShift(to);
+        if (to > from) {
+            final int tail = size - to;
+            System.arraycopy(starts, to, starts, from, tail);
+            System.arraycopy(ends, to, ends, from, tail);
+            System.arraycopy(names, to, names, from, tail);
+            System.arraycopy(kinds, to, kinds, from, tail);
+            size = from + tail;
+            shiftFrom = from;
+            structureValid = false;
+        }
+        shift += delta;
+        if (settled > start) {
+            settled = -1;
+        }
+        if (dirtyFrom == -1) {
+            dirtyFrom = start;
+            dirtyTo = newEnd;
+        } else {
+            dirtyTo = dirtyTo >= oldEnd ? dirtyTo + delta : Math.max(dirtyTo, newEnd);
+            dirtyFrom = Math.min(dirtyFrom, start);
+        }
+    }
+
+    // tokenizes the dirty text again, from the end of the last tag before it, where the
+    // tokenizer is between tags, until it finds a kept tag after it or the end of the text
+    private void applyEdits() {
+        final int first = lowerBoundEnd(dirtyFrom + 1);
+        int restart = first == 0 ? 0 : endOf(first - 1);
+        if (settled > restart && settled <= dirtyFrom) {
+            restart = settled;
+        }
+        final int dirtyEnd = dirtyTo;
+        resyncFrom = dirtyTo;
+        resyncAt = lowerBound(dirtyTo);
+        resynced = false;
+        dirtyFrom = -1;
+        dirtyTo = -1;
+        settled = -1;
+        found.clear();
+        try {
+            tokenize(document.getImmutableCharSequence(), restart);
+        } catch (Budget.Exceeded e) {
+            // the tokenizer is between tags before the construct it is in, keep the tags up to there
+            final int stop = state == TEXT ? read : tagStart;
+            replace(first, lowerBound(stop));
+            dirtyFrom = stop;
+            dirtyTo = Math.max(dirtyEnd, stop);
+            settled = stop;
+            throw e;
+        }
+        replace(first, resynced ? resyncAt : size);
+    }
+
+    // replaces the tags from first up to kept with the found ones
+    private void replace(int first, int kept) {
+        final int inserted = found.size() / 4;
+        boolean same = inserted == kept - first;
+        for (int i = 0; i < inserted && same; i++) {
+            same = startOf(first + i) == found.get(i * 4) && names[first + i] == found.get(i * 4 + 2)
+                    && kinds[first + i] == found.get(i * 4 + 3);
+        }
+        if (same) {
+            return;
+        }
+        moveShift(kept);
+        final int tail = size - kept;
+        ensureCapacity(first + inserted + tail);
+        System.arraycopy(starts, kept, starts, first + inserted, tail);
+        System.arraycopy(ends, kept, ends, first + inserted, tail);
+        System.arraycopy(names, kept, names, first + inserted, tail);
+        System.arraycopy(kinds, kept, kinds, first + inserted, tail);
+        for (int i = 0; i < inserted; i++) {
+            starts[first + i] = found.get(i * 4);
+            ends[first + i] = found.get(i * 4 + 1);
+            names[first + i] = found.get(i * 4 + 2);
+            kinds[first + i] = found.get(i * 4 + 3);
+        }
+        size = first + inserted + tail;
+        shiftFrom = first + inserted;
+        structureValid = false;
+    }
+
+    private void tokenize(@NotNull CharSequence text, int from) {
+        final Budget budget = Budget.current();
+        state = TEXT;
+        for (int start = from; start < text.length() && !resynced; start += CHUNK) {
+            // a chunk at least per call, so a budget spent before it still sees the tokenizing through
+            if (start > from) {
+                read = start;
+                budget.check();
+            }
+            final int length = Math.min(CHUNK, text.length() - start);
+            CharArrayUtil.getChars(text, chunk, start, 0, length);
+            for (int i = 0; i < length && !resynced; i++) {
+                while (step(chunk[i], start + i)) {
+                    // the char ended a construct that turned out to be no tag, it starts the next one
+                }
+            }
+        }
+    }
+
+    // feeds the char at offset to the tokenizer, returns true if it must be fed again
+    private boolean step(char ch, int offset) {
+        switch (state) {
+            case TEXT:
+                if (ch == '<') {
+                    tagStart = offset;
+                    state = OPEN;
+                }
+                return false;
+            case OPEN:
+                if (ch == '/') {
+                    state = SLASH;
+                } else if (ch == '!') {
+                    state = BANG;
+                } else if (ch == '?') {
+                    state = DECLARATION;
+                } else {
+                    close = false;
+                    return startName(ch);
+                }
+                return false;
+            case SLASH:
+                close = true;
+                return startName(ch);
+            case NAME:
+                if (isNameChar(ch)) {
+                    name = 31 * name + Character.toLowerCase(ch);
+                    nameLength++;
+                    return false;
+                }
+                state = ATTRIBUTES;
+                quote = 0;
+                braces = 0;
+                unquoted = false;
+                previous = 0;
+                return true;
+            case ATTRIBUTES:
+                if (quote != 0) {
+                    if (ch == quote) {
+                        quote = 0;
+                    }
+                } else if (ch == '<') {
+                    state = TEXT;
+                    return true;
+                } else if ((ch == '"' || ch == '\'') && previous == '=') {
+                    quote = ch;
+                } else if (ch == '{') {
+                    braces++;
+                } else if (ch == '}' && braces > 0) {
+                    braces--;
+                } else if (ch == '>' && braces == 0) {
+                    state = TEXT;
+                    if (previous != '/') {
+                        emit(offset + 1);
+                    }
+                    return false;
+                } else if (braces == 0 && Character.isWhitespace(ch)) {
+                    unquoted = false;
+                } else if (braces == 0 && previous == '=') {
+                    unquoted = true;
+                } else if (braces == 0 && !unquoted && (ch == '&' || ch == '|' || ch == ';' || ch == ',')) {
+                    // no attribute name holds these, it is code such as a<b && c>d
+                    state = TEXT;
+                    return false;
+                }
+                if (!Character.isWhitespace(ch)) {
+                    previous = ch;
+                }
+                return false;
+            case BANG:
+                state = ch == '-' ? BANG_DASH : DECLARATION;
+                return ch != '-';
+            case BANG_DASH:
+                if (ch == '-') {
+                    state = COMMENT;
+                    dashes = 0;
+                    return false;
+                }
+                state = DECLARATION;
+                return true;
+            case COMMENT:
+                if (ch == '>' && dashes >= 2) {
+                    state = TEXT;
+                } else {
+                    dashes = ch == '-' ? dashes + 1 : 0;
+                }
+                return false;
+            default:
+                if (ch == '>') {
+                    state = TEXT;
+                }
+                return false;
+        }
+    }
+
+    private boolean startName(char ch) {
+        if (!Character.isLetter(ch)) {
+            state = TEXT;
+            return true;
+        }
+        state = NAME;
+        name = Character.toLowerCase(ch);
+        nameLength = 1;
+        return false;
+    }
+
+    private static boolean isNameChar(char ch) {
+        return Character.isLetterOrDigit(ch) || ch == '-' || ch == '_' || ch == ':' || ch == '.';
+    }
+
+    private void emit(int end) {
+        if (tagStart >= resyncFrom) {
+            while (resyncAt < size && startOf(resyncAt) < tagStart) {
+                resyncAt++;
+            }
+            if (resyncAt < size && startOf(resyncAt) == tagStart) {
+                resynced = true;
+                return;
+            }
+        }
+        found.push(tagStart);
+        found.push(end);
+        found.push(name);
+        found.push(nameLength << 1 | (close ? 1 : 0));
+    }
+
+    // matches the pairs again in one pass over the tags, each close tag finds the nearest
+    // open tag of its name through the table of heads instead of searching the stack
+    private void ensureStructure() {
+        if (structureValid) {
+            return;
+        }
+        if (partners.length < size) {
+            partners = new int[starts.length];
+            parents = new int[starts.length];
+        }
+        final int capacity = Integer.highestOneBit(Math.max(16, size) - 1) << 2;
+        if (heads.length < capacity) {
+            headNames = new int[capacity];
+            headLengths = new int[capacity];
+            heads = new int[capacity];
+        } else {
+            Arrays.fill(headLengths, 0);
+        }
+        final CharSequence text = document.getImmutableCharSequence();
+        // the stack holds the open tags not closed yet, and until the second pass parents
+        // links each of them to the open tag of the same name below it
+        stack.clear();
+        for (int i = 0; i < size; i++) {
+            partners[i] = -1;
+            final int slot = slotOf(i);
+            if (!isClose(i)) {
+                parents[i] = heads[slot];
+                heads[slot] = i;
+                stack.push(i);
+                continue;
+            }
+            int open = heads[slot];
+            while (open != -1 && !sameName(text, open, i)) {
+                open = parents[open];
+            }
+            if (open != -1) {
+                partners[i] = open;
+                partners[open] = i;
+                // the open tags it passes over stay unmatched and leave the stack with it
+                int popped;
+                do {
+                    popped = stack.pop();
+                    heads[slotOf(popped)] = parents[popped];
+                } while (popped != open);
+            }
+        }
+        // the matched pairs nest, the stack now holds the open tags of the pairs around
+        stack.clear();
+        for (int i = 0; i < size; i++) {
+            if (isClose(i) && partners[i] != -1) {
+                stack.pop();
+            }
+            parents[i] = stack.isEmpty() ? -1 : stack.peek();
+            if (!isClose(i) && partners[i] != -1) {
+                stack.push(i);
+            }
+        }
+        structureValid = true;
+    }
+
+    // the slot of the name of tag in the table of heads, claimed for it if it is not there yet
+    private int slotOf(int tag) {
+        final int mask = heads.length - 1;
+        final int length = kinds[tag] >> 1;
+        int slot = (names[tag] * 0x9E3779B9 >>> 8) & mask;
+        while (headLengths[slot] != 0 && (headNames[slot] != names[tag] || headLengths[slot] != length)) {
+            slot = (slot + 1) & mask;
+        }
+        if (headLengths[slot] == 0) {
+            headNames[slot] = names[tag];
+            headLengths[slot] = length;
+            heads[slot] = -1;
+        }
+        return slot;
+    }
+
+    // whether the open tag open and the close tag close have the same name, not only the same hash
+    private boolean sameName(@NotNull CharSequence text, int open, int close) {
+        if (names[open] != names[close] || kinds[open] >> 1 != kinds[close] >> 1) {
+            return false;
+        }
+        final int openName = startOf(open) + 1;
+        final int closeName = startOf(close) + 2;
+        for (int i = kinds[open] >> 1; i-- > 0; ) {
+            if (Character.toLowerCase(text.charAt(openName + i)) != Character.toLowerCase(text.charAt(closeName + i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (starts.length < capacity) {
+            int newLength = Math.max(capacity, starts.length * 2);
+            starts = Arrays.copyOf(starts, newLength);
+            ends = Arrays.copyOf(ends, newLength);
+            names = Arrays.copyOf(names, newLength);
+            kinds = Arrays.copyOf(kinds, newLength);
+        }
+    }
+
+    // first tag whose start is >= offset
+    private int lowerBound(int offset) {
+        int lo = 0;
+        int hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (startOf(mid) < offset) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    // first tag whose end is >= offset, tags do not overlap so ends are sorted too
+    private int lowerBoundEnd(int offset) {
+        int lo = 0;
+        int hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (endOf(mid) < offset) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}
@@ -0,0 +1,156 @@
+package xyz.qumn.ideavimtargets;
+
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.util.Key;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+
+/**
+ * Recently resolved targets of an editor, so dot-repeat, macros and undo/redo asking for
+ * the same target on an unchanged document skip the search, and so do the carets whose
+ * target {@link TargetPrefetcher} resolved ahead of time. Entries are dropped as soon as
+ * the document changes, and the least recently used ones beyond {@link #CAPACITY}.
+ * <p>
+ * The entries live in {@link #CAPACITY} slots allocated up front and overwritten in place,
+ * found by a scan of their hashes, so neither a lookup nor a store allocates.
+ * <p>
+ * Only used from the EDT, like the handlers that own it.
+ */
+class TargetCache {
+    private static final Key<TargetCache> KEY = Key.create("xyz.qumn.ideavimtargets.TargetCache");
+    static final int CAPACITY = 64;
+
+    private final Query[] queries = new Query[CAPACITY];
+    private final int[] hashes = new int[CAPACITY];
+    private final Bounds[] targets = new Bounds[CAPACITY];
+    // when the slot was last used, 0 for a free slot
+    private final long[] used = new long[CAPACITY];
+    private long clock;
+    // the stamp every entry was resolved at
+    private long stamp = -1;
+    private final Query probe = new Query();
+
+    private TargetCache() {
+        for (int i = 0; i < CAPACITY; i++) {
+            queries[i] = new Query();
+            targets[i] = new Bounds();
+        }
+    }
+
+    @NotNull
+    static TargetCache forEditor(@NotNull Editor editor) {
+        TargetCache cache = editor.getUserData(KEY);
+        if (cache == null) {
+            cache = new TargetCache();
+            editor.putUserData(KEY, cache);
+        }
+        return cache;
+    }
+
+    /**
+     * @return false on a miss, otherwise out holds the cached target, which may be a cleared
+     * one if the search found nothing.
+     */
+    boolean get(@NotNull Document document, boolean syntaxAware, @NotNull PairsFinder.Pairs pairs,
+                @NotNull QuoteFinder.Quotes quotes, int searchLimit, int offset, int count, @NotNull Bounds out) {
+        sync(document);
+        final int slot = find(probe.set(syntaxAware, pairs, quotes, searchLimit, offset, count));
+        if (slot == -1) {
+            return false;
+        }
+        used[slot] = ++clock;
+        out.set(targets[slot]);
+        return true;
+    }
+
+    /**
+     * Same as {@link #get}, but leaves the recency order as it is.
+     */
+    boolean contains(@NotNull Document document, boolean syntaxAware, @NotNull PairsFinder.Pairs pairs,
+                     @NotNull QuoteFinder.Quotes quotes, int searchLimit, int offset, int count) {
+        sync(document);
+        return find(probe.set(syntaxAware, pairs, quotes, searchLimit, offset, count)) != -1;
+    }
+
+    /**
+     * Stores the target found, or not found, for a query on the document as it is now.
+     */
+    void put(@NotNull Document document, boolean syntaxAware, @NotNull PairsFinder.Pairs pairs,
+             @NotNull QuoteFinder.Quotes quotes, int searchLimit, int offset, int count, @NotNull Bounds target) {
+        sync(document);
+        int slot = find(probe.set(syntaxAware, pairs, quotes, searchLimit, offset, count));
+        if (slot == -1) {
+            // a free slot has the oldest use of all
+            slot = 0;
+            for (int i = 1; i < CAPACITY; i++) {
+                if (used[i] < used[slot]) {
+                    slot = i;
+                }
+            }
+            queries[slot].set(syntaxAware, pairs, quotes, searchLimit, offset, count);
+            hashes[slot] = probe.hashCode();
+        }
+        used[slot] = ++clock;
+        targets[slot].set(target);
+    }
+
+    // the slot holding query, or -1
+    private int find(@NotNull Query query) {
+        final int hash = query.hashCode();
+        for (int i = 0; i < CAPACITY; i++) {
+            if (used[i] != 0 && hashes[i] == hash && queries[i].equals(query)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void sync(@NotNull Document document) {
+        if (stamp != document.getModificationStamp()) {
+            Arrays.fill(used, 0);
+            stamp = document.getModificationStamp();
+        }
+    }
+
+    private static final class Query {
+        private boolean syntaxAware;
+        private PairsFinder.Pairs pairs;
+        private QuoteFinder.Quotes quotes;
+        private int searchLimit;
+        private int offset;
+        private int count;
+
+        @NotNull
+        Query set(boolean syntaxAware, @NotNull PairsFinder.Pairs pairs, @NotNull QuoteFinder.Quotes quotes,
+                  int searchLimit, int offset, int count) {
+            this.syntaxAware = syntaxAware;
+            this.pairs = pairs;
+            this.quotes = quotes;
+            this.searchLimit = searchLimit;
+            this.offset = offset;
+            this.count = count;
+            return this;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Query)) return false;
+            Query other = (Query) o;
+            return offset == other.offset && count == other.count && searchLimit == other.searchLimit
+                    && syntaxAware == other.syntaxAware && pairs.equals(other.pairs) && quotes.equals(other.quotes);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = pairs.hashCode();
+            result = 31 * result + quotes.hashCode();
+            result = 31 * result + searchLimit;
+            result = 31 * result + offset;
+            result = 31 * result + count;
+            return 31 * result + (syntaxAware ? 1 : 0);
+        }
+    }
+}
@@ -0,0 +1,464 @@
+package xyz.qumn.ideavimtargets;
+
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.highlighter.EditorHighlighter;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.util.text.CharArrayUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Finds the pair or quote target for one caret. The caret line is swept once, each char
+ * is classified once and routed to the pair or the quote finder, and the nearest of the
+ * candidates is picked from the line bounds without asking the document for line numbers.
+ * <p>
+ * Lines longer than {@link #WHOLE_LINE} are swept in a window around the caret that is
+ * doubled until it holds a target, covers the line or reaches the search limit, so the
+ * cost follows the distance to the target rather than the length of the line. The quotes
+ * open at the window start come from the checkpoints {@link QuoteCheckpoints} keeps inside
+ * long lines, so a window pairs them as a sweep of the whole line does, and a target is
+ * only taken once no quote opened before its end is left open at the window end. Shorter
+ * lines are always swept whole.
+ * <p>
+ * Sweeps also follow multi-line strings: the quotes left open by the lines above come from
+ * {@link QuoteCheckpoints}, and the ones the caret line leaves open are followed down
+ * until they close.
+ * <p>
+ * The swept chars are copied out of the document in one bulk read, so the sweep runs over
+ * a plain array. Every thread gets its own instance whose finders, stacks, window buffer
+ * and result bounds are reused from call to call.
+ * <p>
+ * Sweeps check the {@link Budget} of their thread every {@link #CHECK_INTERVAL} chars. A
+ * search that runs out of it settles for the target of the last window it swept in full,
+ * if any.
+ */
+class TargetFinder {
+    private static final ThreadLocal<TargetFinder> INSTANCE = ThreadLocal.withInitial(TargetFinder::new);
+
+    // below this many carets a batch is resolved on the calling thread
+    private static final int PARALLEL_CARETS = 128;
+    private static final int CARETS_PER_TASK = 32;
+    private static final int WHOLE_LINE = 4096;
+    private static final int INITIAL_RADIUS = 1024;
+    private static final int CHECK_INTERVAL = 8192;
+
+    private final PairsFinder pairsFinder = new PairsFinder();
+    private final QuoteFinder quoteFinder = new QuoteFinder();
+    private final Bounds pairsBounds = new Bounds();
+    private final Bounds quoteBounds = new Bounds();
+    private final ScanCounters counters = new ScanCounters();
+    private final HighlighterBrackets highlighterBrackets = new HighlighterBrackets(counters);
+    // the target of the last window swept in full
+    private final Bounds best = new Bounds();
+    private final Budget budget = Budget.current();
+
+    private PairsFinder.Pairs classifiedPairs;
+    private QuoteFinder.Quotes classifiedQuotes;
+    private CharClassifier classifier;
+    private char[] window = new char[WHOLE_LINE];
+    private final IntStack carried = new IntStack();
+    // the positions of a batch in offset order, see findBoundsAll
+    private long[] order = new long[0];
+
+    private int lineStart;
+    private int lineEnd;
+
+    @NotNull
+    static TargetFinder getInstance() {
+        return INSTANCE.get();
+    }
+
+    /**
+     * @return the work done by the last search on this thread, including the workers of a
+     * batch it forked.
+     */
+    @NotNull
+    ScanCounters counters() {
+        return counters;
+    }
+
+    /**
+     * @param highlighter if not null, brackets are read through its tokens and the ones in
+     *                    string literals and comments are skipped, see {@link HighlighterBrackets}.
+     * @return the nearest pair or quote around or after position, or null if there is none
+     * or the budget ran out before one was found. The returned bounds are reused by the next
+     * call on this thread.
+     */
+    @Nullable
+    Bounds findBoundsAt(@NotNull Document document,
+                        @Nullable EditorHighlighter highlighter,
+                        @NotNull PairsFinder.Pairs pairs,
+                        @NotNull QuoteFinder.Quotes quotes,
+                        int position,
+                        int count,
+                        int searchLimit) {
+        counters.clear();
+        final int line = document.getLineNumber(position);
+        return findInLine(document, highlighter, pairs, quotes, position, count, searchLimit,
+                line, document.getLineStartOffset(line), document.getLineEndOffset(line));
+    }
+
+    @Nullable
+    private Bounds findInLine(@NotNull Document document,
+                              @Nullable EditorHighlighter highlighter,
+                              @NotNull PairsFinder.Pairs pairs,
+                              @NotNull QuoteFinder.Quotes quotes,
+                              int position,
+                              int count,
+                              int searchLimit,
+                              int line,
+                              int lineStart,
+                              int lineEnd) {
+        best.clear();
+        try {
+            if (lineEnd - lineStart <= WHOLE_LINE) {
+                scan(document, highlighter, pairs, quotes, searchLimit, line, lineStart, lineEnd, lineStart, lineEnd);
+                return resolve(position, count);
+            }
+            for (int radius = Math.min(INITIAL_RADIUS, searchLimit); ; radius = Math.min(radius * 2, searchLimit)) {
+                final int from = Math.max(lineStart, position - radius);
+                final int to = Math.min(lineEnd, position + radius + 1);
+                scan(document, highlighter, pairs, quotes, searchLimit, line, lineStart, lineEnd, from, to);
+                final Bounds nearest = resolve(position, count);
+                // a quote still open at the window end may close past it around a nearer target
+                if ((from == lineStart && to == lineEnd) || radius >= searchLimit
+                        || (nearest != null && nearest.start >= from && nearest.end < to && !quoteFinder.hasOpenBefore(nearest.end))) {
+                    return nearest;
+                }
+                if (nearest != null) {
+                    best.set(nearest);
+                }
+            }
+        } catch (Budget.Exceeded e) {
+            return best.isFound() ? best : null;
+        }
+    }
+
+    /**
+     * Resolves every position at once and stores the target of positions[i] into targets[i].
+     * Positions are visited in offset order so carets sharing a line share its sweep; large
+     * batches are split over the fork-join pool, unless they read a highlighter, which is
+     * left to the calling thread. Must be called under a read action, the workers rely on
+     * it: no write can start while the caller waits for them.
+     * <p>
+     * The workers share the budget of the calling thread; the carets left when it runs out
+     * get no target. They also run under its progress indicator, if it has one, so a write
+     * that cancels the read action stops them too; the cancellation is thrown on the calling
+     * thread once every worker is done, so none of them still reads the document after the
+     * read action ends.
+     */
+    static void findBoundsAll(@NotNull Document document,
+                              @Nullable EditorHighlighter highlighter,
+                              @NotNull PairsFinder.Pairs pairs,
+                              @NotNull QuoteFinder.Quotes quotes,
+                              @NotNull int[] positions,
+                              int count,
+                              int searchLimit,
+                              @NotNull Bounds[] targets) {
+        findBoundsAll(document, highlighter, pairs, quotes, positions, positions.length, count, searchLimit, targets);
+    }
+
+    /**
+     * Same as {@link #findBoundsAll(Document, EditorHighlighter, PairsFinder.Pairs, QuoteFinder.Quotes, int[], int, int, Bounds[])}
+     * for the first size positions, so callers can keep their arrays from call to call.
+     * Batches resolved on the calling thread do not allocate.
+     */
+    static void findBoundsAll(@NotNull Document document,
+                              @Nullable EditorHighlighter highlighter,
+                              @NotNull PairsFinder.Pairs pairs,
+                              @NotNull QuoteFinder.Quotes quotes,
+                              @NotNull int[] positions,
+                              int size,
+                              int count,
+                              int searchLimit,
+                              @NotNull Bounds[] targets) {
+        final TargetFinder finder = getInstance();
+        if (finder.order.length < size) {
+            finder.order = new long[Math.max(size, finder.order.length * 2)];
+        }
+        // offset in the high half, caret index in the low half, so a primitive sort orders both
+        final long[] order = finder.order;
+        boolean sorted = true;
+        for (int i = 0; i < size; i++) {
+            order[i] = ((long) positions[i] << 32) | i;
+            sorted &= i == 0 || order[i - 1] < order[i];
+        }
+        // carets usually come in offset order already
+        if (!sorted) {
+            Arrays.sort(order, 0, size);
+        }
+
+        // build the index here, the workers only query it
+        BracketIndex.forDocument(document, pairs);
+        final ScanCounters counters = finder.counters;
+        counters.clear();
+        if (size < PARALLEL_CARETS || highlighter != null) {
+            finder.resolveSorted(document, highlighter, pairs, quotes, order, 0, size, count, searchLimit, targets);
+        } else {
+            ForkJoinPool.commonPool().invoke(new BatchTask(document, pairs, quotes, order, 0, size, count, searchLimit,
+                    targets, Budget.current(), counters, ProgressManager.getInstance().getProgressIndicator()));
+            ProgressManager.checkCanceled();
+        }
+    }
+
+    private static class BatchTask extends RecursiveAction {
+        private final Document document;
+        private final PairsFinder.Pairs pairs;
+        private final QuoteFinder.Quotes quotes;
+        private final long[] order;
+        private final int from;
+        private final int to;
+        private final int count;
+        private final int searchLimit;
+        private final Bounds[] targets;
+        // the budget of the calling thread
+        private final Budget budget;
+        // the counters of the calling thread
+        private final ScanCounters total;
+        // the progress indicator of the calling thread, null if it has none
+        @Nullable
+        private final ProgressIndicator indicator;
+
+        BatchTask(Document document, PairsFinder.Pairs pairs, QuoteFinder.Quotes quotes, long[] order, int from, int to,
+                  int count, int searchLimit, Bounds[] targets, Budget budget, ScanCounters total,
+                  @Nullable ProgressIndicator indicator) {
+            this.document = document;
+            this.pairs = pairs;
+            this.quotes = quotes;
+            this.order = order;
+            this.from = from;
+            this.to = to;
+            this.count = count;
+            this.searchLimit = searchLimit;
+            this.targets = targets;
+            this.budget = budget;
+            this.total = total;
+            this.indicator = indicator;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > CARETS_PER_TASK) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new BatchTask(document, pairs, quotes, order, from, mid, count, searchLimit, targets, budget, total, indicator),
+                        new BatchTask(document, pairs, quotes, order, mid, to, count, searchLimit, targets, budget, total, indicator));
+                return;
+            }
+            final TargetFinder finder = getInstance();
+            // the calling thread runs some of the tasks itself, its budget and indicator are already set
+            if (finder.counters == total) {
+                resolve(finder);
+                return;
+            }
+            final Budget worker = Budget.current();
+            worker.startAt(budget.deadline());
+            finder.counters.clear();
+            if (indicator != null) {
+                ProgressManager.getInstance().executeProcessUnderProgress(() -> resolve(finder), indicator);
+            } else {
+                resolve(finder);
+            }
+            synchronized (total) {
+                total.add(finder.counters);
+                budget.exceededIn(worker);
+            }
+        }
+
+        private void resolve(@NotNull TargetFinder finder) {
+            try {
+                finder.resolveSorted(document, null, pairs, quotes, order, from, to, count, searchLimit, targets);
+            } catch (ProcessCanceledException e) {
+                // thrown again on the calling thread when the batch is done, see findBoundsAll
+                for (int i = from; i < to; i++) {
+                    targets[(int) order[i]].clear();
+                }
+            }
+        }
+    }
+
+    private void resolveSorted(@NotNull Document document,
+                               @Nullable EditorHighlighter highlighter,
+                               @NotNull PairsFinder.Pairs pairs,
+                               @NotNull QuoteFinder.Quotes quotes,
+                               @NotNull long[] order,
+                               int from,
+                               int to,
+                               int count,
+                               int searchLimit,
+                               @NotNull Bounds[] targets) {
+        int currentLine = 0;
+        int currentStart = 0;
+        int currentEnd = -1;
+        boolean shared = false;
+        int i = from;
+        try {
+            for (; i < to; i++) {
+                final int position = (int) (order[i] >>> 32);
+                // positions are sorted, so a caret before the current line end is on the current line
+                if (position > currentEnd) {
+                    currentLine = document.getLineNumber(position);
+                    currentStart = document.getLineStartOffset(currentLine);
+                    currentEnd = document.getLineEndOffset(currentLine);
+                    // carets on a short line share one sweep of it
+                    shared = currentEnd - currentStart <= WHOLE_LINE;
+                    if (shared) {
+                        scan(document, highlighter, pairs, quotes, searchLimit, currentLine, currentStart, currentEnd, currentStart, currentEnd);
+                    }
+                }
+                final Bounds nearest = shared
+                        ? resolve(position, count)
+                        : findInLine(document, highlighter, pairs, quotes, position, count, searchLimit, currentLine, currentStart, currentEnd);
+                final Bounds target = targets[(int) order[i]];
+                if (nearest != null) {
+                    target.set(nearest);
+                } else {
+                    target.clear();
+                }
+            }
+        } catch (Budget.Exceeded e) {
+            for (; i < to; i++) {
+                targets[(int) order[i]].clear();
+            }
+        }
+    }
+
+    // sweeps [from, to) of the line that spans [lineStart, lineEnd)
+    private void scan(@NotNull Document document,
+                      @Nullable EditorHighlighter highlighter,
+                      @NotNull PairsFinder.Pairs pairs,
+                      @NotNull QuoteFinder.Quotes quotes,
+                      int searchLimit,
+                      int line,
+                      int lineStart,
+                      int lineEnd,
+                      int from,
+                      int to) {
+        this.lineStart = lineStart;
+        this.lineEnd = lineEnd;
+        pairsFinder.reset(document, pairs, highlighter == null ? null : highlighterBrackets.reset(highlighter, document, pairs),
+                lineStart, searchLimit);
+        quoteFinder.reset(document);
+        final boolean multiline = !quotes.multiline.isEmpty();
+        // a window inside the line starts with the quotes opened before it still open
+        if (multiline || from != lineStart) {
+            carried.clear();
+            counters.checkpointed += QuoteCheckpoints.forDocument(document, quotes).openQuotesAt(line, from, carried);
+            for (int i = 0; i < carried.size(); i += 2) {
+                quoteFinder.carryOpen(carried.get(i), (char) carried.get(i + 1));
+            }
+        }
+
+        budget.check();
+        final int length = to - from;
+        if (window.length < length) {
+            window = new char[Math.max(length, window.length * 2)];
+        }
+        final char[] chars = window;
+        final CharSequence text = document.getImmutableCharSequence();
+        CharArrayUtil.getChars(text, chars, from, 0, length);
+        counters.swept += length;
+        counters.window = Math.max(counters.window, length);
+        final CharClassifier classifier = classifierFor(pairs, quotes);
+        // a window may start right after a backslash
+        boolean isPreEsc = from > lineStart && text.charAt(from - 1) == '\\';
+        int nextCheck = CHECK_INTERVAL;
+        for (int i = 0; i < length; i++) {
+            if (i >= nextCheck) {
+                budget.check();
+                nextCheck = i + CHECK_INTERVAL;
+            }
+            final char ch = chars[i];
+            final byte kind = classifier.kindOf(ch);
+            if (kind == CharClassifier.QUOTE && !isPreEsc) {
+                quoteFinder.addQuote(from + i, ch);
+                continue;
+            }
+            if (kind == CharClassifier.TOKEN) {
+                final int token = classifier.match(chars, i, length);
+                if (token != -1) {
+                    pairsFinder.addBracket(from + i, token);
+                    i += pairs.lengthOf(token) - 1;
+                }
+            }
+            isPreEsc = chars[i] == '\\';
+        }
+        if (multiline && to == lineEnd) {
+            quoteFinder.endLine(quotes);
+            if (quoteFinder.hasOpenBefore(lineEnd)) {
+                closeMultiline(document, quotes, searchLimit, lineEnd);
+            }
+        }
+    }
+
+    // follows the lines after the caret line until the strings still open on it are closed
+    private void closeMultiline(@NotNull Document document,
+                                @NotNull QuoteFinder.Quotes quotes,
+                                int searchLimit,
+                                int lineEnd) {
+        final CharSequence text = document.getImmutableCharSequence();
+        final int limit = lineEnd + Math.min(text.length() - lineEnd, searchLimit);
+        quoteFinder.setSpanLimit(lineEnd);
+        boolean isPreEsc = false;
+        for (int start = lineEnd; start < limit; start += window.length) {
+            budget.check();
+            final int length = Math.min(window.length, limit - start);
+            CharArrayUtil.getChars(text, window, start, 0, length);
+            counters.followed += length;
+            for (int i = 0; i < length; i++) {
+                final char ch = window[i];
+                if (ch == '\n') {
+                    quoteFinder.endLine(quotes);
+                } else if (quotes.isQuote(ch) && !isPreEsc) {
+                    quoteFinder.addQuote(start + i, ch);
+                    if (!quoteFinder.hasOpenBefore(lineEnd)) {
+                        return;
+                    }
+                    continue;
+                }
+                isPreEsc = ch == '\\';
+            }
+            if (!quoteFinder.hasOpenBefore(lineEnd)) {
+                return;
+            }
+        }
+    }
+
+    // needs the caret line to be scanned already
+    @Nullable
+    private Bounds resolve(int position, int count) {
+        pairsFinder.findBoundsAt(position, count, quoteFinder, pairsBounds);
+        quoteFinder.findBoundsAt(position, count, quoteBounds);
+        Bounds nearest = nearest(quoteBounds, pairsBounds, position, lineStart, lineEnd);
+        return nearest.isFound() ? nearest : null;
+    }
+
+    // a pair that starts on another line only wins when no quote is found
+    @NotNull
+    private static Bounds nearest(@NotNull Bounds quote, @NotNull Bounds pair, int pos, int lineStart, int lineEnd) {
+        if (!quote.isFound()) {
+            return pair;
+        }
+        if (!pair.isFound() || pair.start < lineStart || pair.start > lineEnd) {
+            return quote;
+        }
+        int dest1 = Math.min(Math.abs(pos - quote.start), Math.abs(quote.end - pos));
+        int dest2 = Math.min(Math.abs(pos - pair.start), Math.abs(pair.end - pos));
+        return dest1 < dest2 ? quote : pair;
+    }
+
+    @NotNull
+    private CharClassifier classifierFor(@NotNull PairsFinder.Pairs pairs, @NotNull QuoteFinder.Quotes quotes) {
+        if (pairs != classifiedPairs || quotes != classifiedQuotes) {
+            classifier = pairs.classifierWith(quotes);
+            classifiedPairs = pairs;
+            classifiedQuotes = quotes;
+        }
+        return classifier;
+    }
+}
@@ -0,0 +1,109 @@
+package xyz.qumn.ideavimtargets;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ModalityState;
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.editor.Caret;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.editor.event.CaretEvent;
+import com.intellij.openapi.editor.event.CaretListener;
+import com.intellij.openapi.editor.highlighter.EditorHighlighter;
+import com.intellij.util.Alarm;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Resolves the targets of the carets of an editor in the background once they have been
+ * idle for {@link #IDLE_MS}, and stores them in its {@link TargetCache}, so the next text
+ * object finds them there instead of searching on the EDT. Enabled by g:targets_prefetch;
+ * only the targets of a count of 1 are resolved ahead.
+ * <p>
+ * The options and the caret offsets are read on the EDT, the search runs in a
+ * non-blocking read action, which a write cancels through the {@link Budget} checks of
+ * the finders, in the workers of a batch of many carets too. The results are stored
+ * back on the EDT, and only if the document has not
+ * changed since the offsets were read; an edit moves the carets, which asks for a new
+ * prefetch anyway.
+ */
+class TargetPrefetcher implements CaretListener, Disposable {
+    static final int IDLE_MS = 150;
+
+    private final Alarm alarm = new Alarm(Alarm.ThreadToUse.SWING_THREAD, this);
+
+    @Override
+    public void caretPositionChanged(@NotNull CaretEvent event) {
+        if (!TargetsOptions.prefetchEnabled()) {
+            return;
+        }
+        final Editor editor = event.getEditor();
+        alarm.cancelAllRequests();
+        alarm.addRequest(() -> prefetch(editor), IDLE_MS);
+    }
+
+    private void prefetch(@NotNull Editor editor) {
+        if (editor.isDisposed()) {
+            return;
+        }
+        final PairsFinder.Pairs pairs;
+        final QuoteFinder.Quotes quotes;
+        try {
+            pairs = TargetsOptions.pairs();
+            quotes = TargetsOptions.quotes();
+        } catch (PairsFinder.Pairs.ParseException parseException) {
+            // the text object reports it when it is used
+            return;
+        }
+        final Document document = editor.getDocument();
+        final EditorHighlighter highlighter = TargetsOptions.highlighter(editor);
+        final boolean syntaxAware = highlighter != null;
+        final int searchLimit = TargetsOptions.searchLimit();
+        final int budgetMillis = TargetsOptions.budgetMillis();
+        final TargetCache cache = TargetCache.forEditor(editor);
+
+        final List<Caret> carets = editor.getCaretModel().getAllCarets();
+        final int[] offsets = new int[carets.size()];
+        int missing = 0;
+        for (Caret caret : carets) {
+            final int offset = caret.getOffset();
+            if (!cache.contains(document, syntaxAware, pairs, quotes, searchLimit, offset, 1)) {
+                offsets[missing++] = offset;
+            }
+        }
+        if (missing == 0) {
+            return;
+        }
+        final int[] positions = missing == offsets.length ? offsets : Arrays.copyOf(offsets, missing);
+        final long stamp = document.getModificationStamp();
+
+        ReadAction.nonBlocking(() -> {
+                    final Bounds[] targets = new Bounds[positions.length];
+                    for (int i = 0; i < targets.length; i++) {
+                        targets[i] = new Bounds();
+                    }
+                    final Budget budget = Budget.current();
+                    budget.start(budgetMillis);
+                    TargetFinder.findBoundsAll(document, highlighter, pairs, quotes, positions, 1, searchLimit, targets);
+                    // the keystroke searches again, which keeps a cut-short result out of the cache
+                    return budget.wasExceeded() ? null : targets;
+                })
+                .expireWith(this)
+                .coalesceBy(this, editor)
+                .finishOnUiThread(ModalityState.defaultModalityState(), targets -> {
+                    if (targets == null || editor.isDisposed() || document.getModificationStamp() != stamp) {
+                        return;
+                    }
+                    for (int i = 0; i < targets.length; i++) {
+                        cache.put(document, syntaxAware, pairs, quotes, searchLimit, positions[i], 1, targets[i]);
+                    }
+                })
+                .submit(AppExecutorUtil.getAppExecutorService());
+    }
+
+    @Override
+    public void dispose() {
+    }
+}
@@ -0,0 +1,134 @@
+package xyz.qumn.ideavimtargets;
+
+import com.intellij.ide.DataManager;
+import com.intellij.ide.IdeEventQueue;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.actionSystem.CommonDataKeys;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.editor.colors.EditorColors;
+import com.intellij.openapi.editor.highlighter.EditorHighlighter;
+import com.intellij.openapi.editor.markup.HighlighterLayer;
+import com.intellij.openapi.editor.markup.HighlighterTargetArea;
+import com.intellij.openapi.editor.markup.RangeHighlighter;
+import com.intellij.util.Alarm;
+import com.maddyhome.idea.vim.command.VimStateMachine;
+import com.maddyhome.idea.vim.newapi.IjVimEditor;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.awt.AWTEvent;
+import java.awt.Component;
+import java.awt.event.KeyEvent;
+
+/**
+ * Highlights the range {@code ab} would select at the primary caret while an operator is
+ * pending, if g:targets_preview is set. It looks at the editor after key events, at most
+ * once per {@link #THROTTLE_MS}, so a key held down at a high repeat rate updates it a few
+ * times a second rather than on every repeat.
+ * <p>
+ * Targets come from the {@link TargetCache} of the editor when they are there, which the
+ * preview, the text object and {@link TargetPrefetcher} all fill, and are searched within
+ * the usual {@link Budget} otherwise. The highlighter is only replaced when the range
+ * changes.
+ */
+class TargetPreview implements IdeEventQueue.EventDispatcher, Disposable {
+    static final int THROTTLE_MS = 50;
+
+    private final Alarm alarm = new Alarm(Alarm.ThreadToUse.SWING_THREAD, this);
+    private final Bounds target = new Bounds();
+    // the editor of the last key event
+    @Nullable
+    private Editor keyEditor;
+    @Nullable
+    private Editor shownEditor;
+    @Nullable
+    private RangeHighlighter shown;
+
+    @Override
+    public boolean dispatch(@NotNull AWTEvent event) {
+        if (!(event instanceof KeyEvent)) {
+            return false;
+        }
+        if (!TargetsOptions.previewEnabled()) {
+            hide();
+            return false;
+        }
+        final Component component = ((KeyEvent) event).getComponent();
+        keyEditor = component == null ? null : DataManager.getInstance().getDataContext(component).getData(CommonDataKeys.EDITOR);
+        if (alarm.isEmpty()) {
+            alarm.addRequest(this::update, THROTTLE_MS);
+        }
+        return false;
+    }
+
+    private void update() {
+        final Editor editor = keyEditor;
+        if (editor == null || editor.isDisposed() || !VimStateMachine.getInstance(new IjVimEditor(editor)).isOperatorPending()
+                || !resolve(editor)) {
+            hide();
+            return;
+        }
+        show(editor, target.start, target.end + target.closeLength);
+    }
+
+    // the target of the primary caret of editor into target, false if there is none
+    private boolean resolve(@NotNull Editor editor) {
+        final PairsFinder.Pairs pairs;
+        final QuoteFinder.Quotes quotes;
+        try {
+            pairs = TargetsOptions.pairs();
+            quotes = TargetsOptions.quotes();
+        } catch (PairsFinder.Pairs.ParseException parseException) {
+            // the text object reports it when it is used
+            return false;
+        }
+        final Document document = editor.getDocument();
+        final EditorHighlighter highlighter = TargetsOptions.highlighter(editor);
+        final int searchLimit = TargetsOptions.searchLimit();
+        final int offset = editor.getCaretModel().getOffset();
+        final TargetCache cache = TargetCache.forEditor(editor);
+        if (!cache.get(document, highlighter != null, pairs, quotes, searchLimit, offset, 1, target)) {
+            final Budget budget = Budget.current();
+            budget.start(TargetsOptions.budgetMillis());
+            final Bounds nearest = TargetFinder.getInstance().findBoundsAt(document, highlighter, pairs, quotes, offset, 1, searchLimit);
+            if (nearest == null) {
+                target.clear();
+            } else {
+                target.set(nearest);
+            }
+            if (!budget.wasExceeded()) {
+                cache.put(document, highlighter != null, pairs, quotes, searchLimit, offset, 1, target);
+            }
+        }
+        return target.isFound();
+    }
+
+    private void show(@NotNull Editor editor, int start, int end) {
+        if (shown != null && shownEditor == editor && shown.isValid()
+                && shown.getStartOffset() == start && shown.getEndOffset() == end) {
+            return;
+        }
+        hide();
+        shown = editor.getMarkupModel().addRangeHighlighter(EditorColors.SEARCH_RESULT_ATTRIBUTES, start, end,
+                HighlighterLayer.SELECTION - 1, HighlighterTargetArea.EXACT_RANGE);
+        shownEditor = editor;
+    }
+
+    private void hide() {
+        if (shown == null) {
+            return;
+        }
+        if (shownEditor != null && !shownEditor.isDisposed()) {
+            shownEditor.getMarkupModel().removeHighlighter(shown);
+        }
+        shown = null;
+        shownEditor = null;
+    }
+
+    @Override
+    public void dispose() {
+        hide();
+        keyEditor = null;
+    }
+}
@@ -0,0 +1,73 @@
+package xyz.qumn.ideavimtargets;
+
+import com.intellij.openapi.editor.Document;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Seeks the count-th pair or quote after the caret, or before it, anywhere in the
+ * document, like the {@code in(} and {@code il(} objects of targets.vim. Pairs come from
+ * the {@link BracketIndex} and quotes from the {@link QuoteIndex}; both are sorted by
+ * offset, so a seek starts with a binary search however far away the target is, and then
+ * only visits the candidates it counts or skips.
+ * <p>
+ * Next targets are ordered by their open delimiter and last targets by their close one,
+ * pairs and quotes merged. Like the ancestor chains, seeks read the bracket index, so they
+ * do not skip the brackets of literals even with g:targets_syntax_aware set.
+ */
+class TargetSeeker {
+    enum Direction {NEXT, LAST}
+
+    // open and close offsets and lengths of the candidate pairs, four slots each
+    private final IntStack pairs = new IntStack();
+    // open and close offsets of the candidate quotes, two slots each
+    private final IntStack quotes = new IntStack();
+
+    /**
+     * @return false if there are fewer than count targets in that direction or the budget
+     * ran out, otherwise out holds the target.
+     */
+    boolean seek(@NotNull Document document, @NotNull PairsFinder.Pairs bracketPairs,
+                 @NotNull QuoteFinder.Quotes quoteList, @NotNull Direction direction,
+                 int position, int count, @NotNull Bounds out) {
+        pairs.clear();
+        quotes.clear();
+        try {
+            final BracketIndex brackets = BracketIndex.forDocument(document, bracketPairs);
+            final QuoteIndex spans = QuoteIndex.forDocument(document, quoteList);
+            if (direction == Direction.NEXT) {
+                brackets.pairsAfter(position, count, pairs);
+                spans.spansAfter(position, count, quotes);
+            } else {
+                brackets.pairsBefore(position, count, pairs);
+                spans.spansBefore(position, count, quotes);
+            }
+        } catch (Budget.Exceeded e) {
+            out.clear();
+            return false;
+        }
+        // both lists are ordered the way the direction counts, merge them up to count
+        int p = 0;
+        int q = 0;
+        for (int taken = 1; p < pairs.size() || q < quotes.size(); taken++) {
+            final boolean pairFirst = q == quotes.size()
+                    || (p < pairs.size() && (direction == Direction.NEXT
+                    ? pairs.get(p) < quotes.get(q)
+                    : pairs.get(p + 1) > quotes.get(q + 1)));
+            if (taken == count) {
+                if (pairFirst) {
+                    out.set(pairs.get(p), pairs.get(p + 1), pairs.get(p + 2), pairs.get(p + 3));
+                } else {
+                    out.set(quotes.get(q), quotes.get(q + 1));
+                }
+                return true;
+            }
+            if (pairFirst) {
+                p += 4;
+            } else {
+                q += 2;
+            }
+        }
+        out.clear();
+        return false;
+    }
+}
@@ -0,0 +1,162 @@
+package xyz.qumn.ideavimtargets;
+
+import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.editor.ex.EditorEx;
+import com.intellij.openapi.editor.highlighter.EditorHighlighter;
+import com.maddyhome.idea.vim.VimPlugin;
+import com.maddyhome.idea.vim.vimscript.model.datatypes.VimInt;
+import com.maddyhome.idea.vim.vimscript.model.datatypes.VimString;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Global variables understood by the extension. Delimiter lists are compiled once and
+ * reused until the variable is given a different value.
+ */
+final class TargetsOptions {
+    static final int DEFAULT_SEARCH_LIMIT = 100_000;
+    static final int DEFAULT_BUDGET_MS = 100;
+    // keeps offset arithmetic on the limit clear of int overflow
+    private static final int MAX_SEARCH_LIMIT = 1 << 30;
+
+    private static String pairsSource;
+    private static PairsFinder.Pairs pairs;
+    private static String quotesSource;
+    private static QuoteFinder.Quotes quotes;
+    // the last pairs and quotes checked to go together, both compiled anew when their source changes
+    private static PairsFinder.Pairs checkedPairs;
+    private static QuoteFinder.Quotes checkedQuotes;
+
+    private TargetsOptions() {
+    }
+
+    /**
+     * @return the pairs configured by g:targets_pairs, or the default ones.
+     */
+    @NotNull
+    static synchronized PairsFinder.Pairs pairs() throws PairsFinder.Pairs.ParseException {
+        final String value = globalString("targets_pairs");
+        if (value == null) {
+            return PairsFinder.DEFAULT_PAIRS;
+        }
+        if (!value.equals(pairsSource)) {
+            pairs = PairsFinder.Pairs.fromBracketPairList(value);
+            pairsSource = value;
+        }
+        return pairs;
+    }
+
+    /**
+     * @return the quotes configured by g:targets_quotes and g:targets_multiline_quotes, or
+     * the default ones. Multi-line quotes are opt-in: unless g:targets_multiline_quotes lists
+     * some, every quote is closed by the end of its line.
+     * @throws PairsFinder.Pairs.ParseException also if one of the configured brackets starts
+     *                                          with a quote.
+     */
+    @NotNull
+    static synchronized QuoteFinder.Quotes quotes() throws PairsFinder.Pairs.ParseException {
+        final String value = globalString("targets_quotes");
+        final String multiline = globalString("targets_multiline_quotes");
+        final QuoteFinder.Quotes configured;
+        if (value == null && multiline == null) {
+            configured = QuoteFinder.DEFAULT_QUOTES;
+        } else {
+            final String source = value + '\0' + multiline;
+            if (!source.equals(quotesSource)) {
+                quotes = QuoteFinder.Quotes.fromQuoteList(value == null ? QuoteFinder.DEFAULT_QUOTES.delimiter : value,
+                        multiline == null ? QuoteFinder.DEFAULT_QUOTES.multiline : multiline);
+                quotesSource = source;
+            }
+            configured = quotes;
+        }
+        final PairsFinder.Pairs configuredPairs = pairs();
+        if (configuredPairs != checkedPairs || configured != checkedQuotes) {
+            configuredPairs.checkQuotes(configured);
+            checkedPairs = configuredPairs;
+            checkedQuotes = configured;
+        }
+        return configured;
+    }
+
+    /**
+     * @return g:targets_search_limit, the farthest a target may reach from the caret in chars.
+     * A value of 0 or less lifts the limit.
+     */
+    static int searchLimit() {
+        final Object value = VimPlugin.getVariableService().getGlobalVariableValue("targets_search_limit");
+        if (!(value instanceof VimInt)) {
+            return DEFAULT_SEARCH_LIMIT;
+        }
+        final int limit = ((VimInt) value).getValue();
+        return limit <= 0 ? MAX_SEARCH_LIMIT : Math.min(limit, MAX_SEARCH_LIMIT);
+    }
+
+    /**
+     * @return g:targets_budget_ms, the time a search may take in milliseconds before it
+     * settles for the best target found so far. A value of 0 or less lifts the budget.
+     */
+    static int budgetMillis() {
+        final Object value = VimPlugin.getVariableService().getGlobalVariableValue("targets_budget_ms");
+        if (!(value instanceof VimInt)) {
+            return DEFAULT_BUDGET_MS;
+        }
+        return ((VimInt) value).getValue();
+    }
+
+    /**
+     * @return whether g:targets_syntax_aware asks to skip the brackets of string literals
+     * and comments, as told by the editor highlighter.
+     */
+    static boolean syntaxAware() {
+        final Object value = VimPlugin.getVariableService().getGlobalVariableValue("targets_syntax_aware");
+        return value instanceof VimInt && ((VimInt) value).getValue() != 0;
+    }
+
+    /**
+     * @return the highlighter to read the brackets of editor through, if g:targets_syntax_aware
+     * asks for it.
+     */
+    @Nullable
+    static EditorHighlighter highlighter(@NotNull Editor editor) {
+        if (!syntaxAware() || !(editor instanceof EditorEx)) {
+            return null;
+        }
+        return ((EditorEx) editor).getHighlighter();
+    }
+
+    /**
+     * @return whether g:targets_prefetch asks to resolve the targets of idle carets in the
+     * background, see {@link TargetPrefetcher}.
+     */
+    static boolean prefetchEnabled() {
+        final Object value = VimPlugin.getVariableService().getGlobalVariableValue("targets_prefetch");
+        return value instanceof VimInt && ((VimInt) value).getValue() != 0;
+    }
+
+    /**
+     * @return whether g:targets_preview asks to highlight the pair target while an operator
+     * is pending, see {@link TargetPreview}.
+     */
+    static boolean previewEnabled() {
+        final Object value = VimPlugin.getVariableService().getGlobalVariableValue("targets_preview");
+        return value instanceof VimInt && ((VimInt) value).getValue() != 0;
+    }
+
+    /**
+     * @return whether g:targets_stats asks to collect the statistics shown by :TargetsStats.
+     */
+    static boolean statsEnabled() {
+        final Object value = VimPlugin.getVariableService().getGlobalVariableValue("targets_stats");
+        return value instanceof VimInt && ((VimInt) value).getValue() != 0;
+    }
+
+    @Nullable
+    private static String globalString(@NotNull String name) {
+        final Object value = VimPlugin.getVariableService().getGlobalVariableValue(name);
+        if (value instanceof VimString) {
+            VimString vimValue = (VimString) value;
+            return vimValue.getValue();
+        }
+        return null;
+    }
+}
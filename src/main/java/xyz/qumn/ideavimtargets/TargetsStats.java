@@ -0,0 +1,97 @@
+package xyz.qumn.ideavimtargets;
+
+import com.intellij.openapi.diagnostic.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency and scan statistics of the text objects, collected while g:targets_stats is set
+ * and shown by {@code :TargetsStats}. Recording only touches lock-free counters and
+ * histograms, and nothing is measured at all while the variable is unset.
+ */
+final class TargetsStats {
+    private static final Logger LOG = Logger.getInstance(TargetsStats.class);
+
+    private static final LongAdder calls = new LongAdder();
+    private static final LongAdder cacheHits = new LongAdder();
+    private static final LongAdder cacheMisses = new LongAdder();
+    private static final LongAdder chainHits = new LongAdder();
+    private static final LongAdder budgetSpent = new LongAdder();
+    private static final Histogram latency = new Histogram();
+    private static final Histogram carets = new Histogram();
+    private static final Histogram swept = new Histogram();
+    private static final Histogram followed = new Histogram();
+    private static final Histogram walked = new Histogram();
+    private static final Histogram checkpointed = new Histogram();
+    private static final Histogram window = new Histogram();
+
+    private TargetsStats() {
+    }
+
+    /**
+     * Records one text object call.
+     *
+     * @param nanos       the wall time of the call.
+     * @param caretCount  the carets it resolved.
+     * @param hits        the carets served by the target cache.
+     * @param misses      the carets the cache had no target for.
+     * @param chains      the carets served by their ancestor chain.
+     * @param counters    the work of the searches, null if nothing was searched.
+     * @param spent       whether the search ran out of budget.
+     */
+    static void record(long nanos, int caretCount, int hits, int misses, int chains,
+                       @Nullable ScanCounters counters, boolean spent) {
+        calls.increment();
+        latency.record(nanos / 1000);
+        carets.record(caretCount);
+        cacheHits.add(hits);
+        cacheMisses.add(misses);
+        chainHits.add(chains);
+        if (spent) {
+            budgetSpent.increment();
+        }
+        if (counters != null) {
+            swept.record(counters.swept);
+            followed.record(counters.followed);
+            walked.record(counters.walked);
+            checkpointed.record(counters.checkpointed);
+            window.record(counters.window);
+        }
+    }
+
+    static void reset() {
+        calls.reset();
+        cacheHits.reset();
+        cacheMisses.reset();
+        chainHits.reset();
+        budgetSpent.reset();
+        latency.reset();
+        carets.reset();
+        swept.reset();
+        followed.reset();
+        walked.reset();
+        checkpointed.reset();
+        window.reset();
+    }
+
+    static void log() {
+        LOG.info("targets statistics\n" + report());
+    }
+
+    @NotNull
+    static String report() {
+        return "calls:           " + calls.sum() + "\n"
+                + "cache:           " + cacheHits.sum() + " hits, " + cacheMisses.sum() + " misses\n"
+                + "ancestor chain:  " + chainHits.sum() + " hits\n"
+                + "budget spent:    " + budgetSpent.sum() + "\n"
+                + "latency:         " + latency.summary("us") + "\n"
+                + "carets:          " + carets.summary("") + "\n"
+                + "swept:           " + swept.summary("chars") + "\n"
+                + "multi-line:      " + followed.summary("chars") + "\n"
+                + "highlighter:     " + walked.summary("chars") + "\n"
+                + "checkpoints:     " + checkpointed.summary("chars") + "\n"
+                + "window:          " + window.summary("chars");
+    }
+}
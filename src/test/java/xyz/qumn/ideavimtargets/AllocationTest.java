@@ -0,0 +1,154 @@
+package xyz.qumn.ideavimtargets;
+
+import com.intellij.openapi.editor.Caret;
+import com.intellij.openapi.editor.CaretState;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.Editor;
+import com.intellij.testFramework.fixtures.BasePlatformTestCase;
+import com.maddyhome.idea.vim.api.VimCaret;
+import com.maddyhome.idea.vim.common.TextRange;
+import com.maddyhome.idea.vim.newapi.IjVimCaret;
+import com.maddyhome.idea.vim.newapi.IjVimEditor;
+import xyz.qumn.ideavimtargets.IdeaVimTargetsExtension.TargetsExtensionHandle.TargetsTextObjectHandler;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntConsumer;
+
+/**
+ * Counts the bytes the text objects allocate on the thread running them once they are
+ * warmed up, as reported by {@link com.sun.management.ThreadMXBean#getThreadAllocatedBytes(long)}.
+ * The finders, the indexes and the cache must not allocate at all, and the handler only
+ * the ranges it hands to IdeaVim.
+ */
+public class AllocationTest extends BasePlatformTestCase {
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private static final int LINES = 20_000;
+    private static final int CARETS = 200;
+    // few enough carets for a batch to be resolved on this thread, where the bytes are counted
+    private static final int BATCH_CARETS = 100;
+    private static final int WARMUP = 5_000;
+    private static final int ROUNDS = 5_000;
+
+    private Document document;
+    // offsets inside the calls of the text, where every text object finds a target
+    private int[] positions;
+    // keeps the results of the measured calls alive
+    private Object sink;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        myFixture.configureByText("generated.txt", GeneratedText.source(LINES, 7));
+        document = myFixture.getEditor().getDocument();
+        final String text = document.getText();
+        positions = new int[CARETS];
+        int call = 0;
+        for (int i = 0; i < CARETS; i++) {
+            call = text.indexOf("call(list", call + 1);
+            assertTrue("the text has fewer calls than carets", call != -1);
+            positions[i] = call + "call(".length();
+        }
+    }
+
+    public void testFindBoundsAtDoesNotAllocate() {
+        final TargetFinder finder = TargetFinder.getInstance();
+        assertNoAllocation(i -> {
+            Budget.current().start(0);
+            sink = finder.findBoundsAt(document, null, PairsFinder.DEFAULT_PAIRS, QuoteFinder.DEFAULT_QUOTES,
+                    positions[i % CARETS], 1 + i % 3, TargetsOptions.DEFAULT_SEARCH_LIMIT);
+        });
+    }
+
+    public void testFindBoundsAllDoesNotAllocate() {
+        final Bounds[] targets = new Bounds[BATCH_CARETS];
+        for (int i = 0; i < BATCH_CARETS; i++) {
+            targets[i] = new Bounds();
+        }
+        assertNoAllocation(i -> {
+            Budget.current().start(0);
+            TargetFinder.findBoundsAll(document, null, PairsFinder.DEFAULT_PAIRS, QuoteFinder.DEFAULT_QUOTES, positions, BATCH_CARETS,
+                    1, TargetsOptions.DEFAULT_SEARCH_LIMIT, targets);
+        });
+    }
+
+    public void testIndexesDoNotAllocate() {
+        final Bounds out = new Bounds();
+        final IntStack chain = new IntStack();
+        final BracketIndex brackets = BracketIndex.forDocument(document, PairsFinder.DEFAULT_PAIRS);
+        final TargetSeeker seeker = new TargetSeeker();
+        final SeparatorFinder fields = new SeparatorFinder();
+        assertNoAllocation(i -> {
+            final int position = positions[i % CARETS];
+            Budget.current().start(0);
+            chain.clear();
+            brackets.findEnclosing(position, 1, out);
+            brackets.enclosingChain(out.start, chain);
+            seeker.seek(document, PairsFinder.DEFAULT_PAIRS, QuoteFinder.DEFAULT_QUOTES,
+                    i % 2 == 0 ? TargetSeeker.Direction.NEXT : TargetSeeker.Direction.LAST, position, 1, out);
+            fields.find(document, PairsFinder.DEFAULT_PAIRS, QuoteFinder.DEFAULT_QUOTES, ',', i % 2 == 0, position, 1, out);
+        });
+    }
+
+    public void testCacheDoesNotAllocate() {
+        final TargetCache cache = TargetCache.forEditor(myFixture.getEditor());
+        final Bounds target = new Bounds();
+        target.set(1, 2);
+        assertNoAllocation(i -> {
+            // more offsets than entries, so stores also replace the least recently used ones
+            cache.put(document, false, PairsFinder.DEFAULT_PAIRS, QuoteFinder.DEFAULT_QUOTES,
+                    TargetsOptions.DEFAULT_SEARCH_LIMIT, positions[i % CARETS], 1, target);
+            cache.get(document, false, PairsFinder.DEFAULT_PAIRS, QuoteFinder.DEFAULT_QUOTES,
+                    TargetsOptions.DEFAULT_SEARCH_LIMIT, positions[(i * 7) % CARETS], 1, target);
+        });
+    }
+
+    public void testGetRangesOnlyAllocatesTheRanges() {
+        final Editor editor = myFixture.getEditor();
+        final List<CaretState> states = new ArrayList<>();
+        for (int i = 0; i < BATCH_CARETS; i++) {
+            states.add(new CaretState(editor.offsetToLogicalPosition(positions[i]), null, null));
+        }
+        editor.getCaretModel().setCaretsAndSelections(states);
+        final IjVimEditor vimEditor = new IjVimEditor(editor);
+        final List<VimCaret> carets = new ArrayList<>();
+        for (Caret caret : editor.getCaretModel().getAllCarets()) {
+            carets.add(new IjVimCaret(caret));
+        }
+        final TargetsTextObjectHandler handler = new TargetsTextObjectHandler(false, null, (char) 0, false, false);
+
+        final long ranges = allocated(i -> {
+            final TextRange[] result = new TextRange[carets.size()];
+            for (int caret = 0; caret < result.length; caret++) {
+                result[caret] = new TextRange(caret, caret + 1);
+            }
+            sink = result;
+        });
+        final long handled = allocated(i -> sink = handler.getRanges(vimEditor, carets, 1));
+        // the options are read from their cache, which allocates nothing once it is filled
+        assertTrue("getRanges allocated " + handled / ROUNDS + " bytes per call for " + carets.size()
+                        + " carets, the ranges take " + ranges / ROUNDS,
+                handled - ranges < ROUNDS);
+    }
+
+    // less than a byte per call, which any object allocated per call is over
+    private void assertNoAllocation(IntConsumer operation) {
+        final long bytes = allocated(operation);
+        assertTrue("allocated " + bytes + " bytes in " + ROUNDS + " calls", bytes < ROUNDS);
+    }
+
+    // the bytes allocated by ROUNDS calls of operation, after WARMUP calls
+    private long allocated(IntConsumer operation) {
+        for (int i = 0; i < WARMUP; i++) {
+            operation.accept(i);
+        }
+        final long thread = Thread.currentThread().getId();
+        final long before = THREADS.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < ROUNDS; i++) {
+            operation.accept(i);
+        }
+        return THREADS.getThreadAllocatedBytes(thread) - before;
+    }
+}
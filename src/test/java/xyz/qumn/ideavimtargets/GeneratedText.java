@@ -0,0 +1,48 @@
+package xyz.qumn.ideavimtargets;
+
+import java.util.Random;
+
+/**
+ * Large generated texts the tests type into, built from a fixed seed so a failure can be
+ * reproduced.
+ */
+final class GeneratedText {
+    private GeneratedText() {
+    }
+
+    /**
+     * An ordinary source file: nested blocks and calls, brackets and separators inside
+     * strings, escaped quotes and unbalanced lines.
+     */
+    static String source(int lines, long seed) {
+        final Random random = new Random(seed);
+        final StringBuilder sb = new StringBuilder();
+        for (int line = 0; line < lines; line++) {
+            final int depth = line % 8;
+            for (int i = 0; i < depth; i++) {
+                sb.append("    ");
+            }
+            switch (random.nextInt(6)) {
+                case 0:
+                    sb.append("if (check(a[").append(line).append("], \"te(x)t\")) {\n");
+                    break;
+                case 1:
+                    sb.append("}\n");
+                    break;
+                case 2:
+                    sb.append("call(list.get(i), 'c', new int[]{1, 2});\n");
+                    break;
+                case 3:
+                    sb.append("log(\"it's \\\"(here)\\\"\", f(g(h[x], {y: 'z'})));\n");
+                    break;
+                case 4:
+                    sb.append("value = map.get(key).orElse(other);\n");
+                    break;
+                default:
+                    sb.append("fail(a, (b, [c)]);\n");
+                    break;
+            }
+        }
+        return sb.toString();
+    }
+}
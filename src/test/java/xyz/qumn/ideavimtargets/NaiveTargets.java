@@ -0,0 +1,163 @@
+package xyz.qumn.ideavimtargets;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The targets of {@code ab} and {@code rb} found by walking the chars of the text one by
+ * one, with none of the indexes, windows, checkpoints and caches of the finders, for the
+ * tests to check the text objects against. It only knows the default pairs and quotes,
+ * which are one char each, and that no quote spans lines.
+ */
+final class NaiveTargets {
+    private static final String OPENS = "([{";
+    private static final String CLOSES = ")]}";
+    private static final String QUOTES = "'\"`";
+
+    private NaiveTargets() {
+    }
+
+    /**
+     * @return the offsets of the open and the close of the count-th target at position, or
+     * null if there is none.
+     */
+    static int[] find(String text, int position, int count, int searchLimit) {
+        if (text.isEmpty()) {
+            return null;
+        }
+        final int lineStart = text.lastIndexOf('\n', position - 1) + 1;
+        int lineEnd = text.indexOf('\n', position);
+        if (lineEnd == -1) {
+            lineEnd = text.length();
+        }
+        int[] pair = surround(text, position, count, searchLimit);
+        if (pair == null || pair[0] < lineStart) {
+            final int[] next = next(text, position, count, lineStart, lineEnd);
+            if (next != null) {
+                pair = next;
+            }
+        }
+        final int[] quote = quote(text, position, count, lineStart, lineEnd);
+        if (quote == null) {
+            return pair;
+        }
+        if (pair == null || pair[0] < lineStart || pair[0] > lineEnd) {
+            return quote;
+        }
+        final int quoteDistance = Math.min(Math.abs(position - quote[0]), Math.abs(quote[1] - position));
+        final int pairDistance = Math.min(Math.abs(position - pair[0]), Math.abs(pair[1] - position));
+        return quoteDistance < pairDistance ? quote : pair;
+    }
+
+    // the count-th pair around position anywhere in the text, quoted or not
+    private static int[] surround(String text, int position, int count, int searchLimit) {
+        // an open bracket under the caret is around it
+        final int end = position < text.length() && OPENS.indexOf(text.charAt(position)) != -1 ? position + 1 : position;
+        final int first = Math.max(0, position - searchLimit);
+        // the depth before i, less the depth before end
+        int depth = 0;
+        int open = -1;
+        for (int i = end - 1; i >= first; i--) {
+            depth -= step(text.charAt(i));
+            if (depth <= -count) {
+                open = i;
+                break;
+            }
+        }
+        if (open == -1) {
+            return null;
+        }
+        final int last = Math.min(text.length() - 1, position + searchLimit);
+        depth = 0;
+        for (int i = open; i <= last; i++) {
+            depth += step(text.charAt(i));
+            if (i > open && step(text.charAt(i)) != 0 && depth <= 0) {
+                return CLOSES.indexOf(text.charAt(i)) == OPENS.indexOf(text.charAt(open)) ? new int[]{open, i} : null;
+            }
+        }
+        return null;
+    }
+
+    // the count-th pair opened at or after position on its line, quoted as position is
+    private static int[] next(String text, int position, int count, int lineStart, int lineEnd) {
+        final List<int[]> quotes = spans(text, lineStart, lineEnd);
+        final int[] region = innermost(quotes, position);
+        final List<Integer> stack = new ArrayList<>();
+        for (int i = position; i < lineEnd; i++) {
+            final char ch = text.charAt(i);
+            if (step(ch) == 0 || innermost(quotes, i) != region) {
+                continue;
+            }
+            if (stack.isEmpty()) {
+                if (step(ch) > 0 && --count == 0) {
+                    stack.add(i);
+                }
+            } else if (step(ch) > 0) {
+                stack.add(i);
+            } else {
+                final int open = stack.remove(stack.size() - 1);
+                if (CLOSES.indexOf(ch) != OPENS.indexOf(text.charAt(open))) {
+                    return null;
+                }
+                if (stack.isEmpty()) {
+                    return new int[]{open, i};
+                }
+            }
+        }
+        return null;
+    }
+
+    // the count-th quote span around position, else the count-th one after it
+    private static int[] quote(String text, int position, int count, int lineStart, int lineEnd) {
+        final List<int[]> around = new ArrayList<>();
+        final List<int[]> after = new ArrayList<>();
+        for (int[] span : spans(text, lineStart, lineEnd)) {
+            if (span[0] <= position && position <= span[1]) {
+                around.add(span);
+            }
+            if (span[0] >= position) {
+                after.add(span);
+            }
+        }
+        // innermost first
+        around.sort((a, b) -> b[0] - a[0]);
+        if (count <= around.size()) {
+            return around.get(count - 1);
+        }
+        after.sort((a, b) -> a[0] - b[0]);
+        return count <= after.size() ? after.get(count - 1) : null;
+    }
+
+    // the quote spans of a line: a quote closes the last open one if it is the same char
+    private static List<int[]> spans(String text, int lineStart, int lineEnd) {
+        final List<int[]> spans = new ArrayList<>();
+        final List<Integer> open = new ArrayList<>();
+        for (int i = lineStart; i < lineEnd; i++) {
+            final char ch = text.charAt(i);
+            if (QUOTES.indexOf(ch) == -1 || i > lineStart && text.charAt(i - 1) == '\\') {
+                continue;
+            }
+            if (!open.isEmpty() && text.charAt(open.get(open.size() - 1)) == ch) {
+                spans.add(new int[]{open.remove(open.size() - 1), i});
+            } else {
+                open.add(i);
+            }
+        }
+        return spans;
+    }
+
+    // the innermost span around offset, null if it is not quoted
+    private static int[] innermost(List<int[]> spans, int offset) {
+        int[] innermost = null;
+        for (int[] span : spans) {
+            if (span[0] <= offset && offset <= span[1] && (innermost == null || span[0] > innermost[0])) {
+                innermost = span;
+            }
+        }
+        return innermost;
+    }
+
+    private static int step(char ch) {
+        return OPENS.indexOf(ch) != -1 ? 1 : CLOSES.indexOf(ch) != -1 ? -1 : 0;
+    }
+}
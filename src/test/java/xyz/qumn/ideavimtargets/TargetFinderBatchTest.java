@@ -0,0 +1,100 @@
+package xyz.qumn.ideavimtargets;
+
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.progress.EmptyProgressIndicator;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.testFramework.fixtures.BasePlatformTestCase;
+
+import java.util.Random;
+
+/**
+ * Resolves batches of enough carets to be split over the fork-join pool, and checks them against the carets resolved one by one
+ * and against {@link NaiveTargets}, and that the workers stop when the budget runs out or
+ * the search is canceled.
+ */
+public class TargetFinderBatchTest extends BasePlatformTestCase {
+    private static final int LINES = 20_000;
+    private static final int CARETS = 1_000;
+
+    private Document document;
+    private String text;
+    private int[] positions;
+    private Bounds[] targets;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        myFixture.configureByText("generated.txt", GeneratedText.source(LINES, 5));
+        document = myFixture.getEditor().getDocument();
+        text = document.getText();
+        final Random random = new Random(5);
+        positions = new int[CARETS];
+        targets = new Bounds[CARETS];
+        for (int i = 0; i < CARETS; i++) {
+            positions[i] = random.nextInt(text.length());
+            targets[i] = new Bounds();
+        }
+    }
+
+    public void testBatchFindsTheTargetsOfEachCaret() {
+        final TargetFinder finder = TargetFinder.getInstance();
+        for (int count = 1; count <= 3; count++) {
+            Budget.current().start(0);
+            findAll(count);
+            for (int i = 0; i < CARETS; i++) {
+                final Bounds single = finder.findBoundsAt(document, null, PairsFinder.DEFAULT_PAIRS, QuoteFinder.DEFAULT_QUOTES,
+                        positions[i], count, TargetsOptions.DEFAULT_SEARCH_LIMIT);
+                final int[] naive = NaiveTargets.find(text, positions[i], count, TargetsOptions.DEFAULT_SEARCH_LIMIT);
+                final String at = "count " + count + " at " + positions[i];
+                assertEquals(at, describe(single), describe(targets[i]));
+                assertEquals(at, naive == null ? "none" : naive[0] + "-" + naive[1], describe(targets[i]));
+            }
+        }
+    }
+
+    public void testWorkersStopWhenTheBudgetRunsOut() {
+        // a deadline already behind, so every worker runs out on its first check
+        Budget.current().startAt(System.nanoTime() - 1);
+        findAll(1);
+
+        assertTrue("the batch did not report its budget ran out", Budget.current().wasExceeded());
+        assertEquals("targets found after the budget ran out", 0, found());
+    }
+
+    public void testWorkersStopWhenCanceled() {
+        final ProgressIndicator indicator = new EmptyProgressIndicator();
+        indicator.cancel();
+        Budget.current().start(0);
+        try {
+            ProgressManager.getInstance().executeProcessUnderProgress(() -> findAll(1), indicator);
+            fail("the canceled batch returned");
+        } catch (ProcessCanceledException expected) {
+            // thrown once every worker stopped
+        }
+        assertEquals("targets found after the batch was canceled", 0, found());
+    }
+
+    private void findAll(int count) {
+        for (Bounds target : targets) {
+            target.set(0, 0);
+        }
+        TargetFinder.findBoundsAll(document, null, PairsFinder.DEFAULT_PAIRS, QuoteFinder.DEFAULT_QUOTES, positions,
+                count, TargetsOptions.DEFAULT_SEARCH_LIMIT, targets);
+    }
+
+    private int found() {
+        int found = 0;
+        for (Bounds target : targets) {
+            if (target.isFound()) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    private static String describe(Bounds bounds) {
+        return bounds == null || !bounds.isFound() ? "none" : bounds.start + "-" + bounds.end;
+    }
+}
@@ -0,0 +1,202 @@
+package xyz.qumn.ideavimtargets;
+
+import com.intellij.openapi.command.WriteCommandAction;
+import com.intellij.openapi.editor.Caret;
+import com.intellij.openapi.editor.CaretState;
+import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.editor.ex.EditorEx;
+import com.intellij.testFramework.fixtures.BasePlatformTestCase;
+import com.maddyhome.idea.vim.KeyHandler;
+import com.maddyhome.idea.vim.VimPlugin;
+import com.maddyhome.idea.vim.api.ExecutionContext;
+import com.maddyhome.idea.vim.api.VimInjectorKt;
+import com.maddyhome.idea.vim.newapi.IjExecutionContext;
+import com.maddyhome.idea.vim.newapi.IjVimEditor;
+
+import javax.swing.KeyStroke;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Types the key sequences people use into an editor of a large generated text, through
+ * IdeaVim and the mappings of the extension, and checks every result against
+ * {@link NaiveTargets}. The time IdeaVim takes to handle each sequence, from its first key
+ * to its last, is measured after a warmup, leaving out the command that wraps the keys,
+ * and its 99th percentile must be within the budget of the scenario: a frame at 60 Hz
+ * for a single caret, three for a hundred carets.
+ */
+public class TextObjectScenarioTest extends BasePlatformTestCase {
+    private static final int LINES = 100_000;
+    private static final int WARMUP = 50;
+    private static final int ROUNDS = 500;
+    private static final long FRAME_NANOS = 16_000_000;
+    private static final int CARETS = 100;
+
+    private final IdeaVimTargetsExtension extension = new IdeaVimTargetsExtension();
+    private Editor editor;
+    private IjVimEditor vimEditor;
+    private ExecutionContext context;
+    private final Random random = new Random(11);
+    // the nanoseconds each measured sequence took
+    private long[] latencies;
+    private int measured;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        myFixture.configureByText("generated.txt", GeneratedText.source(LINES, 3));
+        editor = myFixture.getEditor();
+        vimEditor = new IjVimEditor(editor);
+        context = new IjExecutionContext(((EditorEx) editor).getDataContext());
+        extension.init();
+        KeyHandler.getInstance().fullReset(vimEditor);
+        latencies = new long[ROUNDS];
+        measured = 0;
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        try {
+            extension.dispose();
+            VimPlugin.getKey().removeKeyMapping(extension.getOwner());
+        } finally {
+            super.tearDown();
+        }
+    }
+
+    public void testDeleteAroundPairs() {
+        for (int round = 0; round < WARMUP + ROUNDS; round++) {
+            final String text = editor.getDocument().getText();
+            final int position = random.nextInt(text.length());
+            final int[] target = NaiveTargets.find(text, position, 1, TargetsOptions.DEFAULT_SEARCH_LIMIT);
+            editor.getCaretModel().moveToOffset(position);
+
+            type(round, "dab");
+
+            final String expected = target == null ? text : text.substring(0, target[0]) + text.substring(target[1] + 1);
+            assertEquals("dab at " + position, expected, editor.getDocument().getText());
+        }
+        assertP99Within("dab", FRAME_NANOS);
+    }
+
+    public void testChangeInsidePairs() {
+        for (int round = 0; round < WARMUP + ROUNDS; round++) {
+            final String text = editor.getDocument().getText();
+            final int position = random.nextInt(text.length());
+            final int[] target = NaiveTargets.find(text, position, 1, TargetsOptions.DEFAULT_SEARCH_LIMIT);
+            editor.getCaretModel().moveToOffset(position);
+
+            type(round, "crb");
+            typeKeys("<Esc>");
+
+            final String expected = target == null ? text : text.substring(0, target[0] + 1) + text.substring(target[1]);
+            assertEquals("crb at " + position, expected, editor.getDocument().getText());
+        }
+        assertP99Within("crb", FRAME_NANOS);
+    }
+
+    public void testSelectThirdPairsAround() {
+        final String text = editor.getDocument().getText();
+        for (int round = 0; round < WARMUP + ROUNDS; round++) {
+            final int position = random.nextInt(text.length());
+            final int[] target = NaiveTargets.find(text, position, 3, TargetsOptions.DEFAULT_SEARCH_LIMIT);
+            editor.getCaretModel().moveToOffset(position);
+
+            type(round, "v3ab");
+
+            final Caret caret = editor.getCaretModel().getPrimaryCaret();
+            // without a target, v keeps the char under the caret selected
+            final int start = target == null ? position : target[0];
+            final int end = target == null ? Math.min(position + 1, text.length()) : target[1] + 1;
+            assertEquals("v3ab at " + position, start + "-" + end, caret.getSelectionStart() + "-" + caret.getSelectionEnd());
+            typeKeys("<Esc>");
+        }
+        assertP99Within("v3ab", FRAME_NANOS);
+    }
+
+    public void testSelectPairsAroundWithManyCarets() {
+        final String text = editor.getDocument().getText();
+        for (int round = 0; round < WARMUP + ROUNDS; round++) {
+            final List<int[]> targets = new ArrayList<>();
+            final int[] positions = disjointTargets(text, targets);
+            final List<CaretState> states = new ArrayList<>();
+            for (int position : positions) {
+                states.add(new CaretState(editor.offsetToLogicalPosition(position), null, null));
+            }
+            editor.getCaretModel().setCaretsAndSelections(states);
+
+            type(round, "vab");
+
+            final List<Caret> carets = editor.getCaretModel().getAllCarets();
+            assertEquals("carets after vab", CARETS, carets.size());
+            for (int i = 0; i < CARETS; i++) {
+                final int[] target = targets.get(i);
+                assertEquals("vab at " + positions[i], target[0] + "-" + (target[1] + 1),
+                        carets.get(i).getSelectionStart() + "-" + carets.get(i).getSelectionEnd());
+            }
+            typeKeys("<Esc>");
+            editor.getCaretModel().removeSecondaryCarets();
+        }
+        assertP99Within("vab with " + CARETS + " carets", 3 * FRAME_NANOS);
+    }
+
+    /**
+     * Picks CARETS offsets at random whose ab targets are found and keep apart, so the
+     * selections do not merge, and adds the targets to targets.
+     *
+     * @return the offsets in increasing order, as the editor lists its carets.
+     */
+    private int[] disjointTargets(String text, List<int[]> targets) {
+        final int[] positions = new int[CARETS];
+        // a random offset in each of CARETS slices of the text, ordered by construction
+        final int slice = text.length() / CARETS;
+        int previousEnd = -1;
+        for (int i = 0; i < CARETS; i++) {
+            int[] target = null;
+            for (int attempt = 0; target == null; attempt++) {
+                assertTrue("no target keeps to slice " + i + " of the text", attempt < 1000);
+                positions[i] = i * slice + random.nextInt(slice);
+                target = NaiveTargets.find(text, positions[i], 1, TargetsOptions.DEFAULT_SEARCH_LIMIT);
+                if (target != null && (target[0] <= previousEnd || target[1] + 1 >= (i + 1) * slice)) {
+                    target = null;
+                }
+            }
+            targets.add(target);
+            previousEnd = target[1] + 1;
+        }
+        return positions;
+    }
+
+    // types keys, timing them from the first to the last once the warmup rounds are over
+    private void type(int round, String keys) {
+        final long elapsed = typeKeys(keys);
+        if (round >= WARMUP) {
+            latencies[measured++] = elapsed;
+        }
+    }
+
+    // types keys in a write command, returns the nanoseconds the keys took inside it
+    private long typeKeys(String keys) {
+        final List<KeyStroke> strokes = VimInjectorKt.getInjector().getParser().parseKeys(keys);
+        final long[] elapsed = new long[1];
+        WriteCommandAction.runWriteCommandAction(getProject(), () -> {
+            final long started = System.nanoTime();
+            for (KeyStroke stroke : strokes) {
+                KeyHandler.getInstance().handleKey(vimEditor, stroke, context);
+            }
+            elapsed[0] = System.nanoTime() - started;
+        });
+        return elapsed[0];
+    }
+
+    private void assertP99Within(String scenario, long budgetNanos) {
+        final long[] sorted = Arrays.copyOf(latencies, measured);
+        Arrays.sort(sorted);
+        final long p99 = sorted[(int) Math.ceil(sorted.length * 0.99) - 1];
+        assertTrue(scenario + ": p99 latency " + p99 / 1000 + " us is over the budget of " + budgetNanos / 1000
+                        + " us, median " + sorted[sorted.length / 2] / 1000 + " us",
+                p99 <= budgetNanos);
+    }
+}